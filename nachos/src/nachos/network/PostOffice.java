@@ -10,25 +10,53 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  *
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * The receive interrupt handler only schedules a bottom half on
+ * <tt>ThreadedKernel.bottomHalves</tt>, which takes the message from the
+ * network and places it in the appropriate queue. This cannot be done in the
+ * receive interrupt handler because each queue (implemented with a
+ * <tt>SynchList</tt>) is protected by a lock. If mail is delivered as a soft
+ * real-time job, a "postal worker" thread does this instead.
+ *
+ * <p>
+ * Each mailbox holds at most <tt>PostOffice.mailboxCapacity</tt> messages.
+ * A message that arrives for a full mailbox is dropped, as the network itself
+ * may drop it, rather than stalling delivery to every other port.
  */
 public class PostOffice {
     /**
      * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Register the interrupt handlers with the network hardware and, if mail
+     * is delivered as a real-time job, start the "postal worker" thread.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList(capacity);
+
+	deliverer = new Runnable() {
+	    public void run() { deliver(); }
+	};
+
+	// optionally deliver mail as a soft real-time job
+	int period = Config.getInteger("PostOffice.deliveryPeriod", 0);
+	if (period > 0) {
+	    KThread t = new KThread(new Runnable() {
+		    public void run() { postalDelivery(); }
+		});
+
+	    boolean intStatus = Interrupts.disable();
+	    int budget = Config.getInteger("PostOffice.deliveryBudget", period/10);
+	    if (!ThreadedKernel.scheduler.setDeadline(t, period, Math.max(1, budget)))
+		Lib.debug(dbgNet, "postal worker not admitted as real-time");
+	    Interrupts.restore(intStatus);
+
+	    messageReceived = new Semaphore(0);
+	    t.fork();
+	}
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -36,14 +64,9 @@ public class PostOffice {
 	Runnable sendHandler = new Runnable() {
 	    public void run() { sendInterrupt(); }
 	};
-	Machine.networkLink().setInterruptHandlers(receiveHandler,
-						   sendHandler);
-
-	KThread t = new KThread(new Runnable() {
-		public void run() { postalDelivery(); }
-	    });
-
-	t.fork();
+	BottomHalves bottomHalves = ThreadedKernel.bottomHalves;
+	Machine.networkLink().setInterruptHandlers(bottomHalves.interruptHandler(receiveHandler),
+						   bottomHalves.interruptHandler(sendHandler));
     }
 
     /**
@@ -72,33 +95,47 @@ public class PostOffice {
     private void postalDelivery() {
 	while (true) {
 	    messageReceived.P();
+	    deliver();
+	}
+    }
 
-	    Packet p = Machine.networkLink().receive();
-
-	    MailMessage mail;
+    /**
+     * Take the message that has arrived from the network, and put it in the
+     * correct mailbox.
+     */
+    private void deliver() {
+	Packet p = Machine.networkLink().receive();
 
-	    try {
-		mail = new MailMessage(p);
-	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
+	MailMessage mail;
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+	try {
+	    mail = new MailMessage(p);
+	}
+	catch (MalformedPacketException e) {
+	    return;
+	}
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	if (Lib.test(dbgNet))
+	    System.out.println("delivering mail to port " + mail.dstPort
+			       + ": " + mail);
+
+	// atomically add message to the mailbox and wake a waiting thread,
+	// or drop it if the mailbox is full
+	if (!queues[mail.dstPort].offer(mail)) {
+	    droppedMessages++;
+	    Lib.debug(dbgNet, "mailbox " + mail.dstPort + " full, dropped mail");
 	}
     }
 
     /**
      * Called when a packet has arrived and can be dequeued from the network
-     * link.
+     * link. Defers the delivery to a bottom half, or to the postal worker.
      */
     private void receiveInterrupt() {
-	messageReceived.V();
+	if (messageReceived != null)
+	    messageReceived.V();
+	else
+	    ThreadedKernel.bottomHalves.schedule(deliverer);
     }
 
     /**
@@ -125,8 +162,19 @@ public class PostOffice {
 	messageSent.V();
     }
 
+    /**
+     * Return the number of messages dropped because their mailbox was full.
+     *
+     * @return	the number of messages dropped.
+     */
+    public int getDroppedMessages() {
+	return droppedMessages;
+    }
+
     private SynchList[] queues;
-    private Semaphore messageReceived;	// V'd when a message can be dequeued
+    private int droppedMessages = 0;
+    private Runnable deliverer;		// bottom half that delivers a message
+    private Semaphore messageReceived = null;	// V'd for the postal worker
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
 
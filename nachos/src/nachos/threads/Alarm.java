@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.TreeSet;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
@@ -24,10 +26,19 @@ public class Alarm {
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless the scheduler says the thread has time left
+     * in its quantum.
      */
     public void timerInterrupt() {
-	KThread.currentThread().yield();
+	long now = Machine.timer().getTime();
+	while (!sleepers.isEmpty() && sleepers.first().wakeTime <= now) {
+	    Timeout timeout = sleepers.pollFirst();
+	    Interrupts.recordDeferral(now - timeout.wakeTime);
+	    timeout.expire();
+	}
+
+	if (ThreadedKernel.scheduler.timerInterrupt())
+	    KThread.currentThread().yield();
     }
 
     /**
@@ -45,9 +56,96 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-	long wakeTime = Machine.timer().getTime() + x;
-	while (wakeTime > Machine.timer().getTime())
-	    KThread.yield();
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Interrupts.disable();
+
+	sleepers.add(new Timeout(Machine.timer().getTime() + x,
+				 KThread.currentThread(), null, nextSeq++));
+	KThread.sleep();
+
+	Interrupts.restore(intStatus);
+    }
+
+    /**
+     * Bound the time the specified thread, which is about to sleep waiting
+     * for access to <i>queue</i>, waits. If it is still waiting during the
+     * first timer interrupt at least <i>x</i> ticks from now, it is removed
+     * from the queue and woken. A thread woken before that must cancel the
+     * timeout. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread about to wait.
+     * @param	queue	the queue the thread waits in.
+     * @param	x	the most clock ticks to wait.
+     * @return	the timeout, to cancel once the thread is woken.
+     */
+    public Timeout setTimeout(KThread thread, ThreadQueue queue, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(queue != null);
+
+	Timeout timeout = new Timeout(Machine.timer().getTime() + x,
+				      thread, queue, nextSeq++);
+	sleepers.add(timeout);
+	return timeout;
     }
+
+    /**
+     * A sleeping thread and the time it should be woken, or the bound on a
+     * wait in a thread queue. Cancelling a timeout removes it from the alarm
+     * in O(log n), so a wait granted early leaves nothing behind.
+     */
+    public class Timeout implements Comparable<Timeout> {
+	Timeout(long wakeTime, KThread thread, ThreadQueue queue, long seq) {
+	    this.wakeTime = wakeTime;
+	    this.thread = thread;
+	    this.queue = queue;
+	    this.seq = seq;
+	}
+
+	/**
+	 * Cancel this timeout, after the thread was woken. Must be called with
+	 * interrupts disabled.
+	 *
+	 * @return	<tt>true</tt> if the thread was woken by someone else,
+	 *		<tt>false</tt> if the wait timed out.
+	 */
+	public boolean cancel() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!cancelled && !expired)
+		sleepers.remove(this);
+	    cancelled = true;
+	    return !expired;
+	}
+
+	/** Called when the timeout comes due: wake the thread if it still
+	 * waits. */
+	void expire() {
+	    if (cancelled)
+		return;
+
+	    if (queue == null || queue.remove(thread)) {
+		expired = true;
+		thread.ready();
+	    }
+	}
+
+	public int compareTo(Timeout other) {
+	    if (wakeTime != other.wakeTime)
+		return wakeTime < other.wakeTime ? -1 : 1;
+	    return seq < other.seq ? -1 : (seq > other.seq ? 1 : 0);
+	}
+
+	long wakeTime;
+	KThread thread;
+	ThreadQueue queue;
+	long seq;
+	private boolean cancelled = false;
+	private boolean expired = false;
+    }
+
+    /** Sleeping threads and timeouts, earliest wake time first. */
+    private TreeSet<Timeout> sleepers = new TreeSet<Timeout>();
+    private long nextSeq = 0;
 }
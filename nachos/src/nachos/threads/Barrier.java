@@ -0,0 +1,94 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A reusable barrier for a fixed number of threads. Each thread calls
+ * <tt>await()</tt>, and all of them continue once the last one arrives. The
+ * barrier then resets for the next round, so the same threads can use it
+ * between every stage of a multi-stage computation.
+ *
+ * <p>
+ * The last thread to arrive runs the barrier action, if there is one, before
+ * the others are released, and then wakes all of them in one pass over the
+ * scheduler's queue. The action runs with interrupts as the caller had them,
+ * so it may take long or block; the others stay asleep until it returns.
+ */
+public class Barrier {
+	/**
+	 * Allocate a new barrier with no barrier action.
+	 *
+	 * @param	parties	the number of threads that must arrive.
+	 */
+	public Barrier(int parties) {
+		this(parties, null);
+	}
+
+	/**
+	 * Allocate a new barrier.
+	 *
+	 * @param	parties	the number of threads that must arrive.
+	 * @param	action	run by the last thread to arrive in each round,
+	 *			before the others are woken, or <tt>null</tt>.
+	 */
+	public Barrier(int parties, Runnable action) {
+		Lib.assertTrue(parties > 0);
+
+		this.parties = parties;
+		this.action = action;
+	}
+
+	/**
+	 * Wait until all parties have arrived at the barrier.
+	 *
+	 * @return	the arrival index of the current thread: <tt>parties - 1</tt>
+	 *		for the first to arrive, down to 0 for the last.
+	 */
+	public int await() {
+		boolean intStatus = Interrupts.disable();
+
+		int index = parties - ++arrived;
+		if (index > 0) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+			Interrupts.restore(intStatus);
+			return index;
+		}
+
+		// every other party is asleep here, so the round cannot change
+		// while the action runs with interrupts restored
+		Interrupts.restore(intStatus);
+		if (action != null)
+			action.run();
+
+		intStatus = Interrupts.disable();
+		arrived = 0;
+		rounds++;
+		CountDownLatch.wakeAll(waitQueue);
+		Interrupts.restore(intStatus);
+
+		return index;
+	}
+
+	/** Return the number of parties needed to trip the barrier. */
+	public int getParties() {
+		return parties;
+	}
+
+	/** Return the number of parties waiting in the current round. */
+	public int getNumberWaiting() {
+		return arrived;
+	}
+
+	/** Return the number of rounds the barrier has completed. */
+	public long getRounds() {
+		return rounds;
+	}
+
+	private int parties;
+	private Runnable action;
+	private int arrived = 0;
+	private long rounds = 0;
+	private ThreadQueue waitQueue =
+			ThreadedKernel.scheduler.newThreadQueue(false);
+}
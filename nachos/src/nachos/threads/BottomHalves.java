@@ -0,0 +1,243 @@
+package nachos.threads;
+
+import java.util.ArrayDeque;
+
+import nachos.machine.*;
+
+/**
+ * Deferred interrupt processing. A device interrupt handler is split into a
+ * <i>top half</i>, which runs inside the interrupt with interrupts disabled
+ * and only records what happened, and a <i>bottom half</i>, which the top
+ * half passes to <tt>schedule()</tt>. Bottom halves run later, in arrival
+ * order, on a kernel thread of high priority with interrupts enabled, so
+ * slow processing no longer holds back every other pending interrupt.
+ *
+ * <p>
+ * The thread takes up to a batch of bottom halves off the queue each time
+ * interrupts are disabled, and is forked when the first one is scheduled.
+ * A bottom half may block, but it then holds up the bottom halves behind it.
+ * The kernel's instance is <tt>ThreadedKernel.bottomHalves</tt>.
+ *
+ * <p>
+ * <tt>interruptHandler()</tt> wraps a top half to measure how long it runs
+ * with interrupts disabled. The machine's <tt>Stats</tt> cannot be extended,
+ * so the counts are kept here and logged by <tt>logStats()</tt>.
+ */
+public class BottomHalves {
+	/**
+	 * Allocate a new bottom-half queue. Its thread is not forked until the
+	 * first bottom half is scheduled.
+	 *
+	 * @param	name		the name of the thread.
+	 * @param	priority	the priority of the thread.
+	 * @param	batchSize	the most bottom halves taken per batch.
+	 */
+	public BottomHalves(String name, int priority, int batchSize) {
+		Lib.assertTrue(batchSize > 0);
+
+		batch = new Deferred[batchSize];
+		thread = new KThread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}).setName(name);
+
+		boolean intStatus = Interrupts.disable();
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Queue a bottom half and wake the thread that runs them. Never blocks,
+	 * so it may be called from an interrupt handler.
+	 *
+	 * @param	work	the bottom half.
+	 */
+	public void schedule(Runnable work) {
+		Lib.assertTrue(work != null);
+
+		boolean intStatus = Interrupts.disable();
+
+		pending.add(new Deferred(work, Machine.timer().getTime()));
+		scheduled++;
+		maxPending = Math.max(maxPending, pending.size());
+
+		if (!started) {
+			started = true;
+			thread.fork();
+		}
+		else if (idle) {
+			idle = false;
+			thread.ready();
+		}
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Wrap a top half in an interrupt handler that counts the wall-clock time
+	 * it runs, which is all time with interrupts disabled.
+	 *
+	 * @param	topHalf	the top half, which should do no more than record
+	 *			the event and <tt>schedule()</tt> a bottom half.
+	 * @return	the handler to register with the device.
+	 */
+	public Runnable interruptHandler(final Runnable topHalf) {
+		return new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				topHalf.run();
+				long elapsed = System.nanoTime() - start;
+
+				topHalves++;
+				topHalfNanos += elapsed;
+				maxTopHalfNanos = Math.max(maxTopHalfNanos, elapsed);
+			}
+		};
+	}
+
+	/** Return the thread that runs the bottom halves. */
+	public KThread getThread() {
+		return thread;
+	}
+
+	/** Return the number of bottom halves scheduled so far. */
+	public long getScheduledCount() {
+		return scheduled;
+	}
+
+	/** Return the number of bottom halves run so far. */
+	public long getRunCount() {
+		return ran;
+	}
+
+	/**
+	 * Log a line of statistics, if any bottom half was scheduled:
+	 * <tt>BottomHalves,scheduled,batches,maxPending,avgLatency,maxLatency,
+	 * topHalves,topHalfNs,maxTopHalfNs,queueNs</tt>. Latencies are in
+	 * ticks from <tt>schedule()</tt> to the start of the bottom half;
+	 * the last three are wall-clock time with interrupts disabled, in top
+	 * halves and in taking batches off the queue.
+	 *
+	 * @param	kernel	the kernel whose log to write to.
+	 */
+	void logStats(ThreadedKernel kernel) {
+		if (scheduled == 0)
+			return;
+
+		kernel.logprint(String.format("BottomHalves,%d,%d,%d,%d,%d,%d,%d,%d,%d\n",
+				scheduled, batches, maxPending, ran > 0 ? totalLatency / ran : 0,
+				maxLatency, topHalves, topHalfNanos, maxTopHalfNanos, queueNanos));
+	}
+
+	/** Body of the thread: take a batch with interrupts disabled, then run it. */
+	private void drain() {
+		while (true) {
+			boolean intStatus = Interrupts.disable();
+
+			while (pending.isEmpty()) {
+				idle = true;
+				KThread.sleep();
+			}
+
+			long start = System.nanoTime();
+			int n = 0;
+			while (n < batch.length && !pending.isEmpty())
+				batch[n++] = pending.poll();
+			queueNanos += System.nanoTime() - start;
+
+			Interrupts.restore(intStatus);
+
+			batches++;
+			for (int i = 0; i < n; i++) {
+				long latency = Machine.timer().getTime() - batch[i].time;
+				totalLatency += latency;
+				maxLatency = Math.max(maxLatency, latency);
+
+				batch[i].work.run();
+				batch[i] = null;
+				ran++;
+			}
+		}
+	}
+
+	/** A bottom half and the time it was scheduled. */
+	private static class Deferred {
+		Deferred(Runnable work, long time) {
+			this.work = work;
+			this.time = time;
+		}
+
+		Runnable work;
+		long time;
+	}
+
+	/**
+	 * Compare doing the work of <tt>bottomHalves.events</tt> device events
+	 * (200 by default) inline in the top half with deferring it. The events
+	 * are raised by a thread with interrupts disabled, as the interrupt
+	 * controller would, while the timer keeps preempting it. Reports the
+	 * wall-clock time spent with interrupts disabled per event, and the
+	 * ticks taken.
+	 */
+	public static void selfTest() {
+		int events = Config.getInteger("bottomHalves.events", 200);
+
+		for (int pass = 0; pass < 2; pass++) {
+			final boolean deferred = (pass == 1);
+			final BottomHalves bottomHalves = deferred ? ThreadedKernel.bottomHalves
+					: new BottomHalves("inline", 1, 1);
+			final long[] done = new long[2];	// events handled, checksum
+			final Runnable work = new Runnable() {
+				public void run() {
+					for (int i = 0; i < 20000; i++)
+						done[1] += i % 7;
+					done[0]++;
+				}
+			};
+			Runnable handler = bottomHalves.interruptHandler(new Runnable() {
+				public void run() {
+					if (deferred)
+						bottomHalves.schedule(work);
+					else
+						work.run();
+				}
+			});
+
+			long before = bottomHalves.topHalfNanos;
+			long start = Machine.timer().getTime();
+
+			for (int i = 0; i < events; i++) {
+				boolean intStatus = Interrupts.disable();
+				handler.run();
+				Interrupts.restore(intStatus);
+				KThread.yield();
+			}
+
+			// let the bottom halves catch up
+			while (done[0] < events)
+				ThreadedKernel.alarm.waitUntil(100);
+
+			System.out.println("BottomHalves," + (deferred ? "deferred" : "inline") + ","
+					+ events + "," + (bottomHalves.topHalfNanos - before) / events + ","
+					+ (Machine.timer().getTime() - start));
+		}
+	}
+
+	private KThread thread;
+	private boolean started = false;
+	private boolean idle = false;
+	private ArrayDeque<Deferred> pending = new ArrayDeque<Deferred>();
+	private Deferred[] batch;
+
+	private long scheduled = 0;
+	private long ran = 0;
+	private long batches = 0;
+	private int maxPending = 0;
+	private long totalLatency = 0;
+	private long maxLatency = 0;
+	private long topHalves = 0;
+	private long topHalfNanos = 0;
+	private long maxTopHalfNanos = 0;
+	private long queueNanos = 0;
+}
@@ -2,12 +2,31 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>,
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * Words are copied directly from the speaker to the listener when the two
+ * meet, with interrupts disabled; nothing is buffered in between. Waiting
+ * speakers and listeners sleep in thread queues from the scheduler, which
+ * chooses the next one to pair; the words or buffer space of each waiter are
+ * kept beside the queue. The bulk variants move as many words per rendezvous
+ * as both sides have room for, and a speaker that has started handing its
+ * words out keeps going before the next speaker is chosen.
+ *
+ * <p>
+ * <tt>select()</tt> listens on several communicators at once. A thread can
+ * sleep in only one thread queue, so it waits in the listener queue of the
+ * first communicator and is registered with the others, which serve it in
+ * arrival order once no listener waits in their own queue.
  */
 public class Communicator {
     /**
@@ -27,6 +46,50 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
+	speak(new int[] { word }, 0, 1);
+    }
+
+    /**
+     * Transfer all of <i>words</i>, in order, to one or more listeners.
+     * Does not return until every word has been received.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Transfer <i>length</i> words of <i>words</i>, starting at
+     * <i>offset</i>, to one or more listeners. Does not return until every
+     * word has been received.
+     *
+     * @param	words	the array holding the integers to transfer.
+     * @param	offset	the index of the first word.
+     * @param	length	the number of words.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= words.length);
+	if (length == 0)
+	    return;
+
+	boolean intStatus = Interrupts.disable();
+
+	Waiter speaker = new Waiter(KThread.currentThread(), words, offset, length);
+
+	Waiter listener;
+	while (speaker.length > 0 && (listener = nextListener()) != null) {
+	    transfer(speaker, listener);
+	    listener.done(this);
+	}
+
+	if (speaker.length > 0) {
+	    speakers.put(speaker.thread, speaker);
+	    speakerQueue.waitForAccess(speaker.thread);
+	    KThread.sleep();
+	}
+
+	Interrupts.restore(intStatus);
     }
 
     /**
@@ -34,8 +97,295 @@ public class Communicator {
      * the <i>word</i> that thread passed to <tt>speak()</tt>.
      *
      * @return	the integer transferred.
-     */    
+     */
     public int listen() {
-	return 0;
+	int[] word = new int[1];
+	listen(word, 0, 1);
+	return word[0];
+    }
+
+    /**
+     * Wait for at least one word, and receive as many words as are offered
+     * by waiting speakers, up to the length of <i>buffer</i>.
+     *
+     * @param	buffer	the array to store the words in.
+     * @return	the number of words received.
+     */
+    public int listen(int[] buffer) {
+	return listen(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Wait for at least one word, and receive as many words as are offered
+     * by waiting speakers, up to <i>length</i>, storing them in
+     * <i>buffer</i> starting at <i>offset</i>.
+     *
+     * @param	buffer	the array to store the words in.
+     * @param	offset	the index to store the first word at.
+     * @param	length	the most words to receive.
+     * @return	the number of words received.
+     */
+    public int listen(int[] buffer, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 && offset + length <= buffer.length);
+
+	boolean intStatus = Interrupts.disable();
+
+	Waiter listener = new Waiter(KThread.currentThread(), buffer, offset, length);
+
+	if (hasSpeaker()) {
+	    receive(listener);
+	}
+	else {
+	    park(listener);
+	    KThread.sleep();
+	}
+
+	Interrupts.restore(intStatus);
+
+	return listener.count;
+    }
+
+    /**
+     * Listen on several communicators at once: wait until a speaker is
+     * available on any of them, and receive one word from the first such
+     * communicator.
+     *
+     * @param	channels	the communicators to listen on.
+     * @param	word		an array whose first element receives the word.
+     * @return	the index in <i>channels</i> of the communicator the word
+     *		came from.
+     */
+    public static int select(Communicator[] channels, int[] word) {
+	Lib.assertTrue(channels.length > 0 && word.length > 0);
+
+	boolean intStatus = Interrupts.disable();
+
+	Waiter listener = new Waiter(KThread.currentThread(), word, 0, 1);
+
+	int index = -1;
+	for (int i = 0; i < channels.length && index < 0; i++) {
+	    if (channels[i].hasSpeaker()) {
+		channels[i].receive(listener);
+		index = i;
+	    }
+	}
+
+	if (index < 0) {
+	    channels[0].park(listener);
+	    for (int i = 1; i < channels.length; i++)
+		channels[i].selectors.add(listener);
+	    KThread.sleep();
+
+	    // stop listening on the others
+	    for (int i = 0; i < channels.length; i++) {
+		if (channels[i] == listener.from)
+		    index = i;
+		else
+		    channels[i].selectors.remove(listener);
+	    }
+	}
+
+	Interrupts.restore(intStatus);
+
+	return index;
     }
+
+    /** Return <tt>true</tt> if a speaker is waiting. */
+    private boolean hasSpeaker() {
+	return current != null || !speakers.isEmpty();
+    }
+
+    /** Fill a listener from waiting speakers, waking the ones that are done.
+     * The speaker being drained stays current until it has no words left. */
+    private void receive(Waiter listener) {
+	while (listener.length > 0 && hasSpeaker()) {
+	    if (current == null)
+		current = speakers.remove(speakerQueue.nextThread());
+	    transfer(current, listener);
+	    if (current.length == 0) {
+		current.thread.ready();
+		current = null;
+	    }
+	}
+	listener.from = this;
+    }
+
+    /** Put a listener to wait in this communicator's listener queue. */
+    private void park(Waiter listener) {
+	listener.parkedIn = this;
+	listeners.put(listener.thread, listener);
+	listenerQueue.waitForAccess(listener.thread);
+    }
+
+    /**
+     * Return the next listener to serve, or <tt>null</tt>: the one the
+     * scheduler chooses from the listener queue, or else the first thread in
+     * <tt>select()</tt> registered here that has not been served elsewhere.
+     * The latter is taken out of the queue it sleeps in.
+     */
+    private Waiter nextListener() {
+	KThread thread = listenerQueue.nextThread();
+	if (thread != null)
+	    return listeners.remove(thread);
+
+	Iterator<Waiter> i = selectors.iterator();
+	while (i.hasNext()) {
+	    Waiter listener = i.next();
+	    i.remove();
+	    if (listener.from == null) {
+		Communicator parkedIn = listener.parkedIn;
+		parkedIn.listenerQueue.remove(listener.thread);
+		parkedIn.listeners.remove(listener.thread);
+		return listener;
+	    }
+	}
+	return null;
+    }
+
+    /** Copy as many words as fit from a speaker to a listener. */
+    private static void transfer(Waiter speaker, Waiter listener) {
+	int n = Math.min(speaker.length, listener.length);
+	System.arraycopy(speaker.words, speaker.offset, listener.words, listener.offset, n);
+
+	speaker.offset += n;
+	speaker.length -= n;
+	listener.offset += n;
+	listener.length -= n;
+	listener.count += n;
+    }
+
+    /** A thread waiting to speak or listen, and its words or buffer space. */
+    private static class Waiter {
+	Waiter(KThread thread, int[] words, int offset, int length) {
+	    this.thread = thread;
+	    this.words = words;
+	    this.offset = offset;
+	    this.length = length;
+	}
+
+	/** Wake a listener that has received words from a communicator. */
+	void done(Communicator from) {
+	    this.from = from;
+	    thread.ready();
+	}
+
+	KThread thread;
+	int[] words;
+	int offset;
+	int length;
+
+	/** Words received, and where from, for a listener. */
+	int count = 0;
+	Communicator from = null;
+
+	/** The communicator whose queue a listener sleeps in. */
+	Communicator parkedIn = null;
+    }
+
+    /**
+     * Measure throughput: <tt>communicator.speakers</tt> threads each send
+     * <tt>communicator.words</tt> words to <tt>communicator.listeners</tt>
+     * threads, first one word per rendezvous and then in batches of
+     * <tt>communicator.batch</tt>, and finally through <tt>select()</tt> on
+     * one communicator per speaker. Reports words, rendezvous and wall-clock
+     * words per second for each run.
+     */
+    public static void selfTest() {
+	int speakerCount = Config.getInteger("communicator.speakers", 4);
+	int listenerCount = Config.getInteger("communicator.listeners", 4);
+	int words = Config.getInteger("communicator.words", 10000);
+	int batch = Config.getInteger("communicator.batch", 64);
+
+	runBenchmark("single", speakerCount, listenerCount, words, 1, false);
+	runBenchmark("batch", speakerCount, listenerCount, words, batch, false);
+	runBenchmark("select", speakerCount, 1, words, 1, true);
+    }
+
+    private static void runBenchmark(String name, int speakerCount, int listenerCount,
+				     final int words, final int batch, final boolean select) {
+	final Communicator[] channels = new Communicator[select ? speakerCount : 1];
+	for (int i = 0; i < channels.length; i++)
+	    channels[i] = new Communicator();
+
+	final int total = speakerCount * words;
+	final long[] received = new long[3];	// words, rendezvous, checksum
+	final CountDownLatch done = new CountDownLatch(speakerCount + listenerCount);
+
+	long start = System.currentTimeMillis();
+
+	for (int s = 0; s < speakerCount; s++) {
+	    final Communicator channel = channels[select ? s : 0];
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] chunk = new int[batch];
+			for (int sent = 0; sent < words; sent += batch) {
+			    int n = Math.min(batch, words - sent);
+			    for (int i = 0; i < n; i++)
+				chunk[i] = sent + i;
+			    if (n == 1)
+				channel.speak(chunk[0]);
+			    else
+				channel.speak(chunk, 0, n);
+			}
+			done.countDown();
+		    }
+		}).setName("speaker " + s).fork();
+	}
+
+	// the listeners together take exactly total words
+	final int[] share = new int[listenerCount];
+	for (int l = 0; l < listenerCount; l++)
+	    share[l] = total / listenerCount + (l < total % listenerCount ? 1 : 0);
+
+	for (int l = 0; l < listenerCount; l++) {
+	    final int quota = share[l];
+	    new KThread(new Runnable() {
+		    public void run() {
+			int[] buffer = new int[batch];
+			int[] word = new int[1];
+			for (int got = 0; got < quota; ) {
+			    int n;
+			    if (select) {
+				select(channels, word);
+				buffer[0] = word[0];
+				n = 1;
+			    }
+			    else {
+				n = channels[0].listen(buffer, 0, Math.min(batch, quota - got));
+			    }
+			    got += n;
+			    received[0] += n;
+			    received[1]++;
+			    for (int i = 0; i < n; i++)
+				received[2] += buffer[i];
+			}
+			done.countDown();
+		    }
+		}).setName("listener " + l).fork();
+	}
+
+	done.await();
+
+	long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+	Lib.assertTrue(received[0] == total);
+	Lib.assertTrue(received[2] == (long) speakerCount * words * (words - 1) / 2);
+
+	System.out.println("Communicator," + name + "," + received[0] + "," + received[1]
+			   + "," + (received[0] * 1000 / elapsed));
+    }
+
+    /** Waiting speakers and listeners, chosen by the scheduler. */
+    private ThreadQueue speakerQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue listenerQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    /** The words or buffer space of each thread in the queues. */
+    private HashMap<KThread, Waiter> speakers = new HashMap<KThread, Waiter>();
+    private HashMap<KThread, Waiter> listeners = new HashMap<KThread, Waiter>();
+
+    /** The speaker whose words are being handed out, if any. */
+    private Waiter current = null;
+    /** Threads in <tt>select()</tt> that sleep in another communicator. */
+    private LinkedHashSet<Waiter> selectors = new LinkedHashSet<Waiter>();
 }
@@ -0,0 +1,286 @@
+package nachos.threads;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A scheduler modelled on the Linux completely fair scheduler. Each thread
+ * accumulates <i>virtual runtime</i>: the CPU time it has used, scaled down
+ * by a weight derived from its priority. Waiting threads are kept in a
+ * red-black tree (<tt>java.util.TreeSet</tt>) keyed by virtual runtime and
+ * the thread with the smallest virtual runtime runs next, so no thread can
+ * be starved by a stream of higher priority threads.
+ *
+ * <p>
+ * Priorities are mapped onto nice values, priority 1 to nice -20, the default
+ * priority to nice 0 and the maximum priority to nice 19. A thread that is
+ * preempted before it has used its fair slice of the target latency (and at
+ * least the minimum granularity) keeps the CPU.
+ */
+public class CompletelyFairScheduler extends PriorityScheduler {
+
+	/** Weight of a nice 0 thread. */
+	protected static final int niceZeroWeight = 1024;
+
+	/** Load weights for nice -20 through 19, as used by Linux. */
+	private static final int[] niceToWeight = {
+		/* -20 */ 88761, 71755, 56483, 46273, 36291,
+		/* -15 */ 29154, 23254, 18705, 14949, 11916,
+		/* -10 */  9548,  7620,  6100,  4904,  3906,
+		/*  -5 */  3121,  2501,  1991,  1586,  1277,
+		/*   0 */  1024,   820,   655,   526,   423,
+		/*   5 */   335,   272,   215,   172,   137,
+		/*  10 */   110,    87,    70,    56,    45,
+		/*  15 */    36,    29,    23,    18,    15,
+	};
+
+	/** Priority that maps to nice 0. Matches the default thread priority. */
+	private static final int priorityNiceZero = 11;
+
+	/** Period within which every runnable thread should run once, in ms. */
+	protected long targetLatency = 20;
+
+	/** Smallest slice a thread is given before it can be preempted, in ms. */
+	protected long minGranularity = 4;
+
+	/**
+	 * Allocate a new completely fair scheduler.
+	 */
+	public CompletelyFairScheduler() {
+		super();
+	}
+
+	/** Set target latency and minimum granularity as specified in the config file. */
+	protected void setLatency(long targetLatency, long minGranularity) {
+		this.targetLatency = targetLatency;
+		this.minGranularity = minGranularity;
+	}
+
+	/**
+	 * @see nachos.threads.PriorityScheduler#newThreadQueue(boolean)
+	 */
+	@Override
+	public PriorityThreadQueue newThreadQueue(boolean transferPriority) {
+		return new PriorityThreadQueue(transferPriority);
+	}
+
+	public ThreadState getThreadState(KThread thread) {
+		if (thread.thdSchedState == null) initThreadState(thread);
+		return (ThreadState) thread.thdSchedState;
+	}
+
+	protected void initThreadState(KThread thread) {
+		thread.thdSchedState = new CompletelyFairScheduler.ThreadState(thread);
+	}
+
+	/** Map a priority onto a nice value in [-20, 19]. */
+	protected int priorityToNice(int priority) {
+		if (priority <= priorityNiceZero)
+			return -20 * (priorityNiceZero - priority) / (priorityNiceZero - priorityMinimum);
+
+		return 19 * (priority - priorityNiceZero) / Math.max(1, priorityMaximum - priorityNiceZero);
+	}
+
+
+	protected class ThreadState extends PriorityScheduler.ThreadState {
+
+		/** Weighted CPU time used by the thread, in weighted microseconds. */
+		protected long vruntime;
+
+		/** Load weight derived from the thread's priority. */
+		protected int weight;
+
+		/** Time up to which the thread's CPU use has been charged. */
+		protected long chargedTo;
+
+		/** Time the current slice began. Unlike <tt>lastScheduled</tt>, this is
+		 * not reset when a thread is allowed to keep the CPU. */
+		protected long sliceStart;
+
+		public ThreadState(KThread thread) {
+			// weight is filled in by setPriority() during super()
+			super(thread);
+
+			this.vruntime = -1;
+			this.chargedTo = -1;
+			this.sliceStart = -1;
+		}
+
+		protected void setPriority(int priority) {
+			super.setPriority(priority);
+
+			int oldWeight = this.weight;
+			this.weight = niceToWeight[priorityToNice(priority) + 20];
+			if (waitingOn != null) ((PriorityThreadQueue) waitingOn).reweight(this, oldWeight);
+		}
+
+		/**
+		 * Add the time run since <tt>lastScheduled</tt> (or since the last
+		 * charge, if later) to the virtual runtime. Only valid for the thread
+		 * currently holding the CPU.
+		 */
+		protected void charge() {
+			long curtime = getTime();
+			long ran = curtime - Math.max(lastScheduled, chargedTo);
+			chargedTo = curtime;
+
+			if (ran > 0) vruntime += ran * 1000 * niceZeroWeight / weight;
+		}
+	}
+
+
+	protected class PriorityThreadQueue extends PriorityScheduler.PriorityThreadQueue {
+
+		/** Orders waiting threads by virtual runtime, then by arrival. */
+		private class VruntimeComparator implements Comparator<ThreadState> {
+			@Override
+			public int compare(ThreadState s1, ThreadState s2) {
+				if (s1.vruntime != s2.vruntime)
+					return s1.vruntime < s2.vruntime ? -1 : 1;
+				if (s1.enqueueSeq != s2.enqueueSeq)
+					return s1.enqueueSeq < s2.enqueueSeq ? -1 : 1;
+				return 0;
+			}
+		}
+
+		private TreeSet<ThreadState> tree =
+				new TreeSet<ThreadState>(new VruntimeComparator());
+
+		/** Sum of the weights of all threads in the tree. */
+		private long totalWeight = 0;
+
+		/** Monotonic lower bound on the virtual runtime of queued threads. */
+		private long minVruntime = 0;
+
+		/** Preempted thread that has not used its slice and runs again next. */
+		private ThreadState keep;
+
+		KThread main;
+
+		public PriorityThreadQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		@Override
+		protected void enqueue(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(), "Interrupts not disabled in critical section.");
+
+			if (thread.isMainThread()) {
+				this.main = thread;
+				return;
+			}
+
+			ThreadState state = getThreadState(thread);
+
+			if (thread == currentThread()) {
+				// A preempted or yielding thread keeps the CPU if it has not
+				// had its fair share of the latency period yet.
+				state.charge();
+				if (thread.isReady() && keep == null && !sliceExpired(state)) {
+					keep = state;
+					return;
+				}
+			}
+			else if (state.vruntime < 0) {
+				state.vruntime = minVruntime;
+			}
+			else {
+				// Woken sleepers get a bounded credit for the time they slept.
+				long credit = targetLatency * 1000 / 2;
+				state.vruntime = Math.max(state.vruntime, minVruntime - credit);
+			}
+
+			insert(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			Lib.assertTrue(tree.isEmpty() && keep == null,
+					"Attempted to aquire with non-empty wait queue.");
+			super.acquire(thread);
+		}
+
+		@Override
+		protected KThread dequeue() {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+
+			// A thread giving up the CPU by sleeping or finishing is charged here.
+			KThread current = currentThread();
+			if (!current.isMainThread())
+				getThreadState(current).charge();
+
+			if (keep != null) {
+				ThreadState state = keep;
+				keep = null;
+				return state.thread;
+			}
+
+			if (tree.isEmpty()) {
+				KThread m = main;
+				main = null;
+				return m;
+			}
+
+			ThreadState state = tree.pollFirst();
+			totalWeight -= state.weight;
+			state.sliceStart = getTime();
+
+			if (state.vruntime > minVruntime) minVruntime = state.vruntime;
+
+			return state.thread;
+		}
+
+		/**
+		 * A thread's slice is its weighted share of the target latency, but
+		 * never less than the minimum granularity.
+		 */
+		private boolean sliceExpired(ThreadState state) {
+			if (state.sliceStart < 0) return true;
+
+			long ran = getTime() - state.sliceStart;
+			if (ran < minGranularity) return false;
+
+			long slice = targetLatency * state.weight / (totalWeight + state.weight);
+			if (ran >= Math.max(slice, minGranularity)) return true;
+
+			// Do not let a cheap thread run far ahead of the leftmost waiter.
+			if (!tree.isEmpty())
+				return state.vruntime - tree.first().vruntime > slice * 1000;
+
+			return false;
+		}
+
+		/** Remove a waiting thread from the tree, in O(log n). */
+		protected void removeWaiter(KThread thread) {
+			ThreadState state = getThreadState(thread);
+			if (thread == main)
+				main = null;
+			else if (keep == state)
+				keep = null;
+			else if (tree.remove(state))
+				totalWeight -= state.weight;
+		}
+
+		/** Account for a weight change of a thread waiting in this queue. */
+		protected void reweight(ThreadState state, int oldWeight) {
+			if (tree.contains(state)) totalWeight += state.weight - oldWeight;
+		}
+
+		private void insert(ThreadState state) {
+			tree.add(state);
+			totalWeight += state.weight;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (ThreadState state : tree)
+				System.out.print(state.thread + " (vruntime " + state.vruntime + ") ");
+		}
+	}
+}
@@ -7,7 +7,11 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Sleeping threads wait directly in a thread queue provided by the scheduler,
+ * so unlike <tt>Condition</tt>, which allocates a semaphore and its queue for
+ * every <tt>sleep()</tt>, an untimed sleep allocates nothing. A timed sleep
+ * registers a timeout with the alarm, which removes the thread from the queue
+ * if it has not been woken in time.
  *
  * @see	nachos.threads.Condition
  */
@@ -33,17 +37,61 @@ public class Condition2 {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+	boolean intStatus = Interrupts.disable();
+
 	conditionLock.release();
+	waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+
+	Interrupts.restore(intStatus);
 
 	conditionLock.acquire();
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but stop waiting after at least <i>x</i> ticks
+     * if no thread has woken this one by then. The lock is reacquired in
+     * either case.
+     *
+     * @param	x	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken, <tt>false</tt> if the
+     *		wait timed out.
+     */
+    public boolean sleep(long x) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	if (x <= 0)
+	    return false;
+
+	boolean intStatus = Interrupts.disable();
+
+	KThread thread = KThread.currentThread();
+	conditionLock.release();
+	waitQueue.waitForAccess(thread);
+	Alarm.Timeout timeout = ThreadedKernel.alarm.setTimeout(thread, waitQueue, x);
+	KThread.sleep();
+	boolean woken = timeout.cancel();
+
+	Interrupts.restore(intStatus);
+
+	conditionLock.acquire();
+	return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
      */
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Interrupts.disable();
+
+	KThread thread = waitQueue.nextThread();
+	if (thread != null)
+	    thread.ready();
+
+	Interrupts.restore(intStatus);
     }
 
     /**
@@ -52,7 +100,89 @@ public class Condition2 {
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Interrupts.disable();
+
+	KThread thread;
+	while ((thread = waitQueue.nextThread()) != null)
+	    thread.ready();
+
+	Interrupts.restore(intStatus);
+    }
+
+    /**
+     * Compare <tt>Condition</tt> and <tt>Condition2</tt>: two threads pass a
+     * token back and forth <tt>condition.rounds</tt> times (10000 by default)
+     * through each, and the wall-clock time per round trip is reported.
+     * <tt>Condition</tt> allocates a semaphore and a thread queue on every
+     * sleep; <tt>Condition2</tt> allocates nothing. Also checks that a timed
+     * sleep times out.
+     */
+    public static void selfTest() {
+	final int rounds = Config.getInteger("condition.rounds", 10000);
+
+	for (int pass = 0; pass < 2; pass++) {
+	    final boolean useCondition2 = (pass == 1);
+	    final Lock lock = new Lock();
+	    final Condition cv1 = new Condition(lock);
+	    final Condition2 cv2 = new Condition2(lock);
+	    final int[] turn = new int[1];
+
+	    Runnable player = new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    for (int i = 0; i < rounds; i++) {
+			while (turn[0] != 1) {
+			    if (useCondition2) cv2.sleep(); else cv1.sleep();
+			}
+			turn[0] = 0;
+			if (useCondition2) cv2.wake(); else cv1.wake();
+		    }
+		    lock.release();
+		}
+	    };
+	    new KThread(player).setName("condition player").fork();
+
+	    long start = System.nanoTime();
+
+	    lock.acquire();
+	    for (int i = 0; i < rounds; i++) {
+		turn[0] = 1;
+		if (useCondition2) cv2.wake(); else cv1.wake();
+		while (turn[0] != 0) {
+		    if (useCondition2) cv2.sleep(); else cv1.sleep();
+		}
+	    }
+	    lock.release();
+
+	    long elapsed = System.nanoTime() - start;
+
+	    System.out.println((useCondition2 ? "Condition2," : "Condition,") + rounds
+			       + "," + (elapsed / rounds));
+	}
+
+	// a thread times out of the queue, then wakes main before main does
+	final Lock lock = new Lock();
+	final Condition2 cv = new Condition2(lock);
+	final long start = Machine.timer().getTime();
+
+	new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    Lib.assertTrue(!cv.sleep(2000));
+		    Lib.assertTrue(Machine.timer().getTime() - start >= 2000);
+		    cv.wake();
+		    lock.release();
+		}
+	    }).setName("timed sleeper").fork();
+
+	lock.acquire();
+	Lib.assertTrue(cv.sleep(20000));
+	lock.release();
+	Lib.assertTrue(Machine.timer().getTime() - start < 20000);
     }
 
     private Lock conditionLock;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,107 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A latch that threads wait on until a count, set when the latch is
+ * allocated, has been counted down to zero. Used to wait for a number of
+ * forked threads or events without one semaphore <tt>P()</tt> per thread.
+ * Once the count reaches zero the latch stays open.
+ *
+ * <p>
+ * Waiting threads sleep in a thread queue from the scheduler. The last
+ * <tt>countDown()</tt> wakes all of them in one pass over the queue, with
+ * interrupts disabled once.
+ */
+public class CountDownLatch {
+	/**
+	 * Allocate a new latch.
+	 *
+	 * @param	count	the number of <tt>countDown()</tt> calls needed to
+	 *			open the latch.
+	 */
+	public CountDownLatch(int count) {
+		Lib.assertTrue(count >= 0);
+		this.count = count;
+	}
+
+	/**
+	 * Wait until the count reaches zero. Returns at once if it already has.
+	 */
+	public void await() {
+		boolean intStatus = Interrupts.disable();
+
+		if (count > 0) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Wait at most <i>ticks</i> for the count to reach zero.
+	 *
+	 * @param	ticks	the most clock ticks to wait.
+	 * @return	<tt>true</tt> if the count reached zero, <tt>false</tt> if
+	 *		the wait timed out.
+	 */
+	public boolean await(long ticks) {
+		boolean intStatus = Interrupts.disable();
+
+		if (count > 0 && ticks > 0) {
+			KThread thread = KThread.currentThread();
+			waitQueue.waitForAccess(thread);
+			Alarm.Timeout timeout =
+					ThreadedKernel.alarm.setTimeout(thread, waitQueue, ticks);
+			KThread.sleep();
+			timeout.cancel();
+		}
+
+		boolean open = (count == 0);
+
+		Interrupts.restore(intStatus);
+
+		return open;
+	}
+
+	/**
+	 * Decrement the count, waking all waiting threads if it reaches zero.
+	 * Does nothing if the count is already zero.
+	 */
+	public void countDown() {
+		boolean intStatus = Interrupts.disable();
+
+		if (count > 0 && --count == 0)
+			wakeAll(waitQueue);
+
+		Interrupts.restore(intStatus);
+	}
+
+	/** Return the number of <tt>countDown()</tt> calls still needed. */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Ready every thread waiting in <i>queue</i>. Must be called with
+	 * interrupts disabled.
+	 *
+	 * @return	the number of threads woken.
+	 */
+	static int wakeAll(ThreadQueue queue) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		int woken = 0;
+		KThread thread;
+		while ((thread = queue.nextThread()) != null) {
+			thread.ready();
+			woken++;
+		}
+		return woken;
+	}
+
+	private int count;
+	private ThreadQueue waitQueue =
+			ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -0,0 +1,251 @@
+package nachos.threads;
+
+import java.util.LinkedHashSet;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A dynamic priority scheduler in the style of 4.4BSD. Every timer interrupt
+ * charges one unit of <i>recent CPU</i> to the running thread. Once per
+ * decay interval (a simulated second, <tt>scheduler.decayInterval</tt> ticks)
+ * the scheduler updates an exponentially weighted load average of the number
+ * of runnable threads, decays every thread's recent CPU by
+ * <tt>2*load/(2*load+1)</tt>, and recomputes all priorities as
+ *
+ * <p><blockquote>
+ * priority = base priority + recent CPU / 4
+ * </blockquote>
+ *
+ * <p>
+ * in a single batch, restoring ready queue order once. Nothing is recomputed
+ * when threads are enqueued or dispatched. The base priority is the one set
+ * with <tt>setPriority()</tt> and plays the role of the BSD nice value; the
+ * decay keeps a thread that stops using the CPU from being penalized for
+ * long, and a higher load makes the penalty last longer.
+ */
+public class DecayUsageScheduler extends PriorityScheduler {
+
+	/**
+	 * Allocate a new decay-usage scheduler.
+	 */
+	public DecayUsageScheduler() {
+		super();
+	}
+
+	/** Set the interval between recomputations, in ticks, as specified in the
+	 * config file. */
+	protected void setDecayInterval(long ticks) {
+		Lib.assertTrue(ticks > 0);
+		this.decayInterval = ticks;
+	}
+
+	/** Return the current load average. */
+	public double getLoadAverage() {
+		return loadAverage;
+	}
+
+	/**
+	 * Return the priority set with <tt>setPriority()</tt>, not the decayed
+	 * priority the thread is scheduled at, so that reading a priority and
+	 * setting it again does not fold recent CPU use into the base.
+	 */
+	@Override
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).basePriority;
+	}
+
+	/**
+	 * @see nachos.threads.PriorityScheduler#newThreadQueue(boolean)
+	 */
+	@Override
+	public PriorityThreadQueue newThreadQueue(boolean transferPriority) {
+		return new PriorityThreadQueue(transferPriority);
+	}
+
+	@Override
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new PriorityThreadQueue(false);
+		return readyQueue;
+	}
+
+	public ThreadState getThreadState(KThread thread) {
+		if (thread.thdSchedState == null) initThreadState(thread);
+		return (ThreadState) thread.thdSchedState;
+	}
+
+	protected void initThreadState(KThread thread) {
+		thread.thdSchedState = new DecayUsageScheduler.ThreadState(thread);
+	}
+
+	/**
+	 * Charge the running thread for one timer interval and, once per decay
+	 * interval, recompute the load average and all priorities.
+	 */
+	@Override
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread current = currentThread();
+		if (!current.isMainThread() && !current.isIdleThread()
+				&& current.thdSchedState != null)
+			getThreadState(current).recentCpu++;
+
+		long now = getTicks();
+		if (now >= nextDecay) {
+			nextDecay = now + decayInterval;
+			decay(current);
+		}
+
+		return super.timerInterrupt();
+	}
+
+	/** Update the load average, then decay and reprioritize every thread. */
+	private void decay(KThread current) {
+		int runnable = (readyQueue != null) ? readyQueue.size() : 0;
+		if (!current.isIdleThread() && !current.isMainThread())
+			runnable++;
+		loadAverage = (59*loadAverage + runnable) / 60;
+
+		double factor = (2*loadAverage) / (2*loadAverage + 1);
+
+		recomputing = true;
+		for (ThreadState state : threads) {
+			state.recentCpu *= factor;
+			state.updateDynamicPriority();
+		}
+		recomputing = false;
+
+		if (readyQueue != null)
+			readyQueue.reorder();
+	}
+
+
+	protected class ThreadState extends PriorityScheduler.ThreadState {
+
+		/** Priority set with <tt>setPriority()</tt>. */
+		protected int basePriority;
+
+		/** Decayed count of timer interrupts taken while running. */
+		protected double recentCpu;
+
+		public ThreadState(KThread thread) {
+			super(thread);
+
+			if (!thread.isMainThread())
+				threads.add(this);
+		}
+
+		/** Set the base priority and recompute the dynamic priority from it. */
+		protected void setPriority(int priority) {
+			basePriority = priority;
+			updateDynamicPriority();
+		}
+
+		/** Recompute the priority from the base priority and recent CPU. */
+		protected void updateDynamicPriority() {
+			int p = basePriority + (int) (recentCpu / 4);
+			if (p > priorityMaximum) p = priorityMaximum;
+			if (p < priorityMinimum) p = priorityMinimum;
+
+			if (p != priority || p != effectivePriority)
+				super.setPriority(p);
+		}
+
+		protected void logFinished() {
+			super.logFinished();
+			threads.remove(this);
+		}
+	}
+
+
+	protected class PriorityThreadQueue extends PriorityScheduler.PriorityThreadQueue {
+
+		private ThreadHeap waitQueue = new ThreadHeap(new PriorityComparator(),
+				ThreadedKernel.numThreads);
+
+		KThread main;
+
+		public PriorityThreadQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		@Override
+		protected void enqueue(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(), "Interrupts not disabled in critical section.");
+
+			if (thread.isMainThread()) {
+				this.main = thread;
+				return;
+			}
+
+			waitQueue.add(getThreadState(thread));
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			Lib.assertTrue(waitQueue.isEmpty(),
+					"Attempted to aquire with non-empty wait queue.");
+			super.acquire(thread);
+		}
+
+		@Override
+		protected KThread dequeue() {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+
+			if (waitQueue.isEmpty()) {
+				KThread m = main;
+				main = null;
+				return m;
+			}
+			return waitQueue.poll().thread;
+		}
+
+		/** Remove a waiting thread, in O(log n). */
+		protected void removeWaiter(KThread thread) {
+			if (thread == main)
+				main = null;
+			else
+				waitQueue.remove(getThreadState(thread));
+		}
+		
+		/** Number of threads waiting. */
+		int size() {
+			return waitQueue.size();
+		}
+
+		/** Reposition a waiting thread whose priority changed, unless the
+		 * whole ready queue is being reprioritized. */
+		protected void priorityChanged(PriorityScheduler.ThreadState state) {
+			if (recomputing && this == readyQueue) return;
+			if (waitQueue.contains(state)) waitQueue.update(state);
+		}
+
+		/** Restore heap order after a batch of priority changes, in O(n). */
+		void reorder() {
+			waitQueue.heapify();
+		}
+	}
+
+
+	/** Ticks between recomputations. Can be specified in config file. */
+	protected long decayInterval = 10000;
+
+	/** Time of the next recomputation, in ticks. */
+	private long nextDecay = 0;
+
+	/** Exponentially weighted average of the number of runnable threads. */
+	private double loadAverage = 0;
+
+	/** Set while all priorities are recomputed in a batch. */
+	private boolean recomputing = false;
+
+	private PriorityThreadQueue readyQueue = null;
+
+	/** States of all threads that have not finished, in creation order. */
+	private LinkedHashSet<ThreadState> threads = new LinkedHashSet<ThreadState>();
+}
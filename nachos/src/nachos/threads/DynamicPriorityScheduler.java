@@ -44,7 +44,7 @@ public class DynamicPriorityScheduler extends PriorityScheduler {
 		public void ageValUp() {
 			if (this.thread.isIdleThread()) return;
 			int oldPriority = this.getPriority();
-			long curtime = kernel.getTime();
+			long curtime = getTime();
 			long newRunTime = curtime + uncountedRunTime - this.lastScheduled;
 			int increment = (int) (newRunTime/( (long) agingTime));
 			this.uncountedRunTime = newRunTime % agingTime;
@@ -54,7 +54,7 @@ public class DynamicPriorityScheduler extends PriorityScheduler {
 		public void ageValDown() {
 			if (this.thread.isIdleThread()) return;
 			int oldPriority = this.getPriority();
-			long curtime = kernel.getTime();
+			long curtime = getTime();
 			if (lastWaitAgeTime < lastEnqueued) lastWaitAgeTime = lastEnqueued;
 			if (lastWaitAgeTime < 0) return;
 			long newWaitTime = curtime + uncountedWaitTime - lastWaitAgeTime;
@@ -68,10 +68,12 @@ public class DynamicPriorityScheduler extends PriorityScheduler {
 	
 	protected class PriorityThreadQueue extends PriorityScheduler.PriorityThreadQueue {
 
-		private PriorityThreadQueue.ThreadComparator tComp = 
-				new PriorityThreadQueue.ThreadComparator();
-		private java.util.PriorityQueue<KThread> waitQueue =
-				new java.util.PriorityQueue<KThread>(ThreadedKernel.numThreads, tComp);
+		private ThreadHeap waitQueue = new ThreadHeap(new PriorityComparator(),
+				ThreadedKernel.numThreads);
+		
+		/** Set while waiting threads are aged in a batch, so that each priority
+		 * change does not sift the heap on its own. */
+		private boolean aging = false;
 		
 		KThread main;
 		
@@ -80,7 +82,7 @@ public class DynamicPriorityScheduler extends PriorityScheduler {
 		}
 
 		@Override
-		public void waitForAccess(KThread thread) {
+		protected void enqueue(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled(), "Interrupts not disabled in critical section.");
 			if (thread.isMainThread()) {
 				this.main = thread;
@@ -88,7 +90,7 @@ public class DynamicPriorityScheduler extends PriorityScheduler {
 			else {
 				int p = thread.thdSchedState.getPriority();
 				Lib.assertTrue( p>= priorityMinimum && p <= priorityMaximum);
-				waitQueue.add(thread);
+				waitQueue.add(getThreadState(thread));
 			}
 		}
 
@@ -97,36 +99,50 @@ public class DynamicPriorityScheduler extends PriorityScheduler {
 					"Interrupts not disabled in required critical section.");
 			Lib.assertTrue(waitQueue.isEmpty(), 
 					"Attempted to aquire with non-empty wait queue.");			
+			super.acquire(thread);
 		}
 
 		@Override
-		public KThread nextThread() {
+		protected KThread dequeue() {
 			Lib.assertTrue(Machine.interrupt().disabled(),
 					"Interrupts not disabled in required critical section.");
 			
-			if (waitQueue.isEmpty()) return main;
+			if (waitQueue.isEmpty()) {
+				// Hand out the main thread only once, so that a lock queue it
+				// waited on once does not keep returning it.
+				KThread m = main;
+				main = null;
+				return m;
+			}
 			updatePriority();
-			return waitQueue.poll();
+			return waitQueue.poll().thread;
+		}
+		
+		/** Remove a waiting thread, in O(log n). */
+		protected void removeWaiter(KThread thread) {
+			if (thread == main)
+				main = null;
+			else
+				waitQueue.remove(getThreadState(thread));
+		}
+		
+		/** Reposition a waiting thread whose priority changed, in O(log n). */
+		protected void priorityChanged(PriorityScheduler.ThreadState state) {
+			if (!aging && waitQueue.contains(state)) waitQueue.update(state);
 		}
 		
 				
-		/* This method iterates over all the threads in the KThread
-		 * readyQueue and removes them from the Queue.  While doing so it
-		 * updates their priorites and adds them to a new queue so the order
-		 * of the queue will be correctly updated.  Then it sets the old waitQueue to the
-		 * new wait queue. 
+		/* This method ages every thread in the waiting queue. Priorities are
+		 * changed in place and heap order is restored once, in linear time,
+		 * when all threads have been aged.
 		 */
 		public void updatePriority(){
-			Machine.interrupt().disable();
-			java.util.PriorityQueue<KThread> newQueue =
-					new java.util.PriorityQueue<KThread>(ThreadedKernel.numThreads, tComp);
-			KThread thread;
-			while (waitQueue.size() != 0){
-				thread = waitQueue.poll();
-				getThreadState(thread).ageValDown();
-				newQueue.add(thread);
-			}
-			waitQueue = newQueue;
+			Lib.assertTrue(Machine.interrupt().disabled());
+			aging = true;
+			for (int i = 0; i < waitQueue.size(); i++)
+				waitQueue.get(i).ageValDown();
+			aging = false;
+			waitQueue.heapify();
 		}
 		
 		
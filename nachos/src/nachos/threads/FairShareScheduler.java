@@ -0,0 +1,382 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A hierarchical fair-share scheduler. Threads belong to scheduling groups
+ * arranged in a tree. To choose the next thread the scheduler walks down from
+ * the root, at each level taking the runnable child group with the least
+ * virtual runtime (CPU time divided by weight), and then takes the best
+ * priority thread of the leaf group. Groups and threads are kept in balanced
+ * trees and heaps, so both levels cost O(log n) per level of the hierarchy.
+ * A group that floods the run queue with threads therefore still receives
+ * only its weighted share of the CPU.
+ *
+ * <p>
+ * Every thread starts in the group <tt>default</tt>. Only the ready queue is
+ * grouped; lock and semaphore queues order threads by priority alone. CPU use
+ * of every group is written to the log at exit.
+ */
+public class FairShareScheduler extends PriorityScheduler {
+
+	/** Weight of the default group, and the unit of group weights. */
+	protected static final int defaultWeight = 1024;
+
+	/**
+	 * Allocate a new fair-share scheduler.
+	 */
+	public FairShareScheduler() {
+		super();
+
+		root = newGroup(null, "root", defaultWeight);
+		defaultGroup = newGroup(root, "default", defaultWeight);
+	}
+
+	/**
+	 * @see nachos.threads.PriorityScheduler#newThreadQueue(boolean)
+	 */
+	@Override
+	public PriorityThreadQueue newThreadQueue(boolean transferPriority) {
+		return new PriorityThreadQueue(transferPriority);
+	}
+
+	/** The ready queue is the only queue ordered by group. */
+	@Override
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new GroupThreadQueue();
+		return readyQueue;
+	}
+
+	public ThreadState getThreadState(KThread thread) {
+		if (thread.thdSchedState == null) initThreadState(thread);
+		return (ThreadState) thread.thdSchedState;
+	}
+
+	protected void initThreadState(KThread thread) {
+		thread.thdSchedState = new FairShareScheduler.ThreadState(thread);
+	}
+
+	@Override
+	public SchedulingGroup createGroup(SchedulingGroup parent, String name, int weight) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(weight > 0);
+
+		if (parent == null)
+			parent = root;
+		Lib.assertTrue(parent.threadCount == 0,
+				"Cannot add a child to a group that has threads.");
+
+		return newGroup(parent, name, weight);
+	}
+
+	@Override
+	public boolean setGroup(KThread thread, SchedulingGroup group) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(group.childCount == 0,
+				"Threads can only join groups without children.");
+
+		ThreadState state = getThreadState(thread);
+		if (state.group == group)
+			return true;
+
+		// charge the old group for the time run so far
+		if (thread == currentThread())
+			state.charge();
+
+		boolean queued = state.group.threads.contains(state);
+		if (queued)
+			readyQueue.removeThread(state);
+
+		state.group.threadCount--;
+		state.group = group;
+		group.threadCount++;
+
+		if (queued)
+			readyQueue.insertThread(state);
+		return true;
+	}
+
+	private SchedulingGroup newGroup(SchedulingGroup parent, String name, int weight) {
+		SchedulingGroup group = new SchedulingGroup(parent, name, weight, groups.size());
+		group.threads = new ThreadHeap(readyComparator, 16);
+		groups.add(group);
+		return group;
+	}
+
+	/**
+	 * Also write one row per group: name, weight and CPU time used by the
+	 * group and its descendants.
+	 */
+	protected void logFinalStats() {
+		super.logFinalStats();
+
+		for (SchedulingGroup group : groups) {
+			if (group == root) continue;
+			kernel.logprint(String.format("Group,%s,%d,%d\n", group,
+					group.getWeight(), group.getCpuTime()));
+		}
+	}
+
+
+	protected class ThreadState extends PriorityScheduler.ThreadState {
+
+		/** Group the thread belongs to. */
+		protected SchedulingGroup group;
+
+		/** Time up to which the thread's CPU use has been charged. */
+		protected long chargedTo;
+
+		public ThreadState(KThread thread) {
+			super(thread);
+
+			this.group = defaultGroup;
+			this.chargedTo = -1;
+			group.threadCount++;
+		}
+
+		/**
+		 * Charge the time run since <tt>lastScheduled</tt> (or since the last
+		 * charge, if later) to the thread's group and all its ancestors. Only
+		 * valid for the thread currently holding the CPU.
+		 */
+		protected void charge() {
+			long curtime = getTime();
+			long ran = curtime - Math.max(lastScheduled, chargedTo);
+			chargedTo = curtime;
+
+			if (ran <= 0) return;
+
+			for (SchedulingGroup g = group; g.parent != null; g = g.parent) {
+				g.cpuTime += ran;
+
+				// reposition the group if it is runnable in its parent
+				boolean queued = g.parent.runnable.remove(g);
+				g.vruntime += ran * defaultWeight / g.weight;
+				if (queued) g.parent.runnable.add(g);
+			}
+		}
+
+		/** A finished thread leaves its group, which may then take children. */
+		protected void logFinished() {
+			super.logFinished();
+			group.threadCount--;
+		}
+	}
+
+
+	/** The ready queue: a tree of runnable groups above per-group heaps. */
+	protected class GroupThreadQueue extends PriorityScheduler.PriorityThreadQueue {
+
+		KThread main;
+
+		public GroupThreadQueue() {
+			super(false);
+		}
+
+		@Override
+		protected void enqueue(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(), "Interrupts not disabled in critical section.");
+
+			if (thread.isMainThread()) {
+				this.main = thread;
+				return;
+			}
+
+			ThreadState state = getThreadState(thread);
+			if (thread == currentThread())
+				state.charge();
+
+			insertThread(state);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			Lib.assertTrue(root.runnable.isEmpty(),
+					"Attempted to aquire with non-empty wait queue.");
+			super.acquire(thread);
+		}
+
+		@Override
+		protected KThread dequeue() {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+
+			// A thread giving up the CPU by sleeping or finishing is charged here.
+			KThread current = currentThread();
+			if (!current.isMainThread() && current.thdSchedState != null)
+				getThreadState(current).charge();
+
+			if (root.runnable.isEmpty()) {
+				KThread m = main;
+				main = null;
+				return m;
+			}
+
+			SchedulingGroup group = root;
+			while (!group.runnable.isEmpty()) {
+				SchedulingGroup next = group.runnable.first();
+				if (next.vruntime > group.minVruntime) group.minVruntime = next.vruntime;
+				group = next;
+			}
+
+			ThreadState state = (ThreadState) group.threads.poll();
+			if (group.threads.isEmpty())
+				deactivate(group);
+
+			return state.thread;
+		}
+
+		/** Add a thread to its group's heap, making the group runnable. */
+		void insertThread(ThreadState state) {
+			SchedulingGroup group = state.group;
+			boolean wasIdle = group.threads.isEmpty();
+			group.threads.add(state);
+			if (wasIdle) activate(group);
+		}
+
+		/** Remove a queued thread from its group's heap. */
+		void removeThread(ThreadState state) {
+			SchedulingGroup group = state.group;
+			group.threads.remove(state);
+			if (group.threads.isEmpty()) deactivate(group);
+		}
+
+		/**
+		 * Make a group runnable in its parent, and the parent in its own
+		 * parent if it was idle. A group that was idle does not keep credit
+		 * for the time it did not use.
+		 */
+		private void activate(SchedulingGroup group) {
+			SchedulingGroup parent = group.parent;
+			if (parent == null) return;
+
+			if (group.vruntime < parent.minVruntime) group.vruntime = parent.minVruntime;
+
+			boolean wasIdle = parent.runnable.isEmpty();
+			parent.runnable.add(group);
+			if (wasIdle) activate(parent);
+		}
+
+		/** Remove a group with nothing runnable below it from its parent. */
+		private void deactivate(SchedulingGroup group) {
+			SchedulingGroup parent = group.parent;
+			if (parent == null) return;
+
+			parent.runnable.remove(group);
+			if (parent.runnable.isEmpty()) deactivate(parent);
+		}
+
+		/** Remove a waiting thread from its group, in O(log n) per level. */
+		protected void removeWaiter(KThread thread) {
+			if (thread == main)
+				main = null;
+			else
+				removeThread(getThreadState(thread));
+		}
+
+		/** Reposition a waiting thread whose priority changed. */
+		protected void priorityChanged(PriorityScheduler.ThreadState state) {
+			ThreadHeap heap = ((ThreadState) state).group.threads;
+			if (heap.contains(state)) heap.update(state);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (SchedulingGroup group : groups) {
+				for (int i = 0; i < group.threads.size(); i++)
+					System.out.print(group.threads.get(i).thread + " [" + group + "] ");
+			}
+		}
+	}
+
+
+	/** Lock, semaphore and condition queues: best priority first. */
+	protected class PriorityThreadQueue extends PriorityScheduler.PriorityThreadQueue {
+
+		private ThreadHeap waitQueue = new ThreadHeap(new PriorityComparator(),
+				ThreadedKernel.numThreads);
+
+		KThread main;
+
+		public PriorityThreadQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		protected void enqueue(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+
+			if (thread.isMainThread()) {
+				this.main = thread;
+				return;
+			}
+
+			waitQueue.add(getThreadState(thread));
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			Lib.assertTrue(waitQueue.isEmpty(),
+					"Attempted to aquire with non-empty wait queue.");
+			super.acquire(thread);
+		}
+
+		@Override
+		protected KThread dequeue() {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+
+			PriorityScheduler.ThreadState state = waitQueue.poll();
+			if (state == null) {
+				KThread m = main;
+				main = null;
+				return m;
+			}
+			return state.thread;
+		}
+
+		/** Remove a waiting thread, in O(log n). */
+		protected void removeWaiter(KThread thread) {
+			if (thread == main)
+				main = null;
+			else
+				waitQueue.remove(getThreadState(thread));
+		}
+
+		protected void priorityChanged(PriorityScheduler.ThreadState state) {
+			if (waitQueue.contains(state)) waitQueue.update(state);
+		}
+	}
+
+
+	/** Orders the threads within a group by effective priority, then by
+	 * arrival in the ready queue. */
+	private static class ReadyComparator implements Comparator<PriorityScheduler.ThreadState> {
+		@Override
+		public int compare(PriorityScheduler.ThreadState s1, PriorityScheduler.ThreadState s2) {
+			int p1 = s1.getEffectivePriority();
+			int p2 = s2.getEffectivePriority();
+			if (p1 != p2) return p1 < p2 ? -1 : 1;
+			if (s1.enqueueSeq != s2.enqueueSeq)
+				return s1.enqueueSeq < s2.enqueueSeq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final ReadyComparator readyComparator = new ReadyComparator();
+
+	private List<SchedulingGroup> groups = new ArrayList<SchedulingGroup>();
+	private SchedulingGroup root;
+	private SchedulingGroup defaultGroup;
+	private GroupThreadQueue readyQueue = null;
+}
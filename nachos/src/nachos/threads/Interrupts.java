@@ -0,0 +1,184 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import nachos.machine.*;
+
+/**
+ * The kernel's access to the interrupt controller for critical sections.
+ * <tt>disable()</tt> and <tt>restore()</tt> behave exactly like those of
+ * <tt>Machine.interrupt()</tt>, but when profiling is on they also record,
+ * for each call site that disables interrupts, how long they stay disabled,
+ * in ticks and in wall-clock nanoseconds. A section that sleeps ends when
+ * the next thread to run restores interrupts, so it includes the context
+ * switch.
+ *
+ * <p>
+ * Disabled sections cost no simulated time in Nachos, so device interrupts
+ * are never late in ticks because of them. What the kernel can see is how
+ * late the alarm's timeouts expire past their due time, which includes
+ * waiting for the next timer interrupt; <tt>Alarm</tt> records that here.
+ *
+ * <p>
+ * The interrupt controller is part of the machine simulation and cannot be
+ * changed, so the profile covers only the kernel code that goes through
+ * this class. Profiling is off unless
+ * <tt>ThreadedKernel.profileInterrupts</tt> is true; call sites are found
+ * from the stack, which is slow, so the time to find one is not counted.
+ */
+public class Interrupts {
+	private Interrupts() {
+	}
+
+	/**
+	 * Disable interrupts and return the old interrupt state.
+	 *
+	 * @return	<tt>true</tt> if interrupts were enabled.
+	 */
+	public static boolean disable() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (profiling && intStatus) {
+			if (openSite != null)
+				lost++;		// enabled without going through this class
+			openSite = callSite();
+			openTicks = Machine.timer().getTime();
+			openNanos = System.nanoTime();
+		}
+
+		return intStatus;
+	}
+
+	/**
+	 * Restore interrupts to the specified state.
+	 *
+	 * @param	status	<tt>true</tt> to enable interrupts.
+	 */
+	public static void restore(boolean status) {
+		if (profiling && status && openSite != null && Machine.interrupt().disabled())
+			close();
+
+		Machine.interrupt().restore(status);
+	}
+
+	/**
+	 * Enable interrupts.
+	 */
+	public static void enable() {
+		restore(true);
+	}
+
+	/**
+	 * Turn profiling on or off.
+	 *
+	 * @param	on	<tt>true</tt> to profile.
+	 */
+	static void setProfiling(boolean on) {
+		profiling = on;
+		openSite = null;
+	}
+
+	/**
+	 * Record how late a timer event was handled past its due time. Does
+	 * nothing unless profiling is on.
+	 *
+	 * @param	ticks	the ticks between the due time and the handling.
+	 */
+	static void recordDeferral(long ticks) {
+		if (profiling)
+			deferral.record(ticks);
+	}
+
+	/**
+	 * Log the profile, if profiling is on: for each call site, most total
+	 * time first, <tt>InterruptsOff,site,count,p50Ns,p99Ns,p999Ns,maxNs,
+	 * totalNs,maxTicks</tt>, then
+	 * <tt>TimerDeferral,count,p50,p99,p999,max</tt> in ticks.
+	 *
+	 * @param	kernel	the kernel whose log to write to.
+	 */
+	static void logStats(ThreadedKernel kernel) {
+		if (!profiling)
+			return;
+
+		ArrayList<Site> list = new ArrayList<Site>(sites.values());
+		Collections.sort(list, new Comparator<Site>() {
+			public int compare(Site s1, Site s2) {
+				if (s1.totalNanos != s2.totalNanos)
+					return s1.totalNanos > s2.totalNanos ? -1 : 1;
+				return s1.name.compareTo(s2.name);
+			}
+		});
+
+		for (Site site : list) {
+			LatencyHistogram h = site.nanos;
+			kernel.logprint(String.format("InterruptsOff,%s,%d,%d,%d,%d,%d,%d,%d\n",
+					site.name, h.getCount(), h.getValueAtPercentile(50),
+					h.getValueAtPercentile(99), h.getValueAtPercentile(99.9),
+					h.getMax(), site.totalNanos, site.maxTicks));
+		}
+		kernel.logprint(String.format("TimerDeferral,%d,%d,%d,%d,%d\n",
+				deferral.getCount(), deferral.getValueAtPercentile(50),
+				deferral.getValueAtPercentile(99), deferral.getValueAtPercentile(99.9),
+				deferral.getMax()));
+		if (lost > 0)
+			kernel.logprint(String.format("InterruptsOffLost,%d\n", lost));
+	}
+
+	/** End the open section and charge it to its call site. */
+	private static void close() {
+		long nanos = System.nanoTime() - openNanos;
+		long ticks = Machine.timer().getTime() - openTicks;
+
+		Site site = sites.get(openSite);
+		if (site == null) {
+			site = new Site(openSite);
+			sites.put(openSite, site);
+		}
+		site.nanos.record(nanos);
+		site.totalNanos += nanos;
+		site.maxTicks = Math.max(site.maxTicks, ticks);
+
+		openSite = null;
+	}
+
+	/** Return the method and line that called into this class. */
+	private static String callSite() {
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		for (StackTraceElement frame : stack) {
+			if (!frame.getClassName().equals(Interrupts.class.getName())) {
+				String className = frame.getClassName();
+				return className.substring(className.lastIndexOf('.') + 1)
+						+ "." + frame.getMethodName() + ":" + frame.getLineNumber();
+			}
+		}
+		return "unknown";
+	}
+
+	/** The sections that disabled interrupts at one call site. */
+	private static class Site {
+		Site(String name) {
+			this.name = name;
+		}
+
+		String name;
+		LatencyHistogram nanos = new LatencyHistogram();
+		long totalNanos = 0;
+		long maxTicks = 0;
+	}
+
+	private static boolean profiling = false;
+
+	/** The call site of the section in progress, or <tt>null</tt>. */
+	private static String openSite = null;
+	private static long openTicks;
+	private static long openNanos;
+	/** Sections that ended without a call to <tt>restore()</tt>. */
+	private static long lost = 0;
+
+	private static HashMap<String, Site> sites = new HashMap<String, Site>();
+	private static LatencyHistogram deferral = new LatencyHistogram();
+}
@@ -0,0 +1,337 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import nachos.machine.*;
+
+/**
+ * The result of a computation that may not have finished yet. A future is
+ * completed once, with a value or with the exception the computation threw.
+ * Threads that call <tt>get()</tt> before then sleep in a thread queue from
+ * the scheduler and are woken by the completion; they never spin.
+ *
+ * <p>
+ * <tt>KThread.submit()</tt> forks a thread to compute a future's value, and
+ * threads waiting for that future donate their priority to the thread. A
+ * future allocated directly is completed by whoever holds it, with
+ * <tt>complete()</tt> or <tt>fail()</tt>.
+ *
+ * <p>
+ * The combinators <tt>thenApply()</tt> and <tt>allOf()</tt> register
+ * callbacks that run in the thread that completes the future, so they fork
+ * no threads of their own. A callback registered on a future that is already
+ * complete runs at once, in the registering thread.
+ *
+ * @param	<T>	the type of the value.
+ */
+public class KFuture<T> {
+	/**
+	 * A function applied to the value of a future by <tt>thenApply()</tt>.
+	 *
+	 * @param	<A>	the type of the argument.
+	 * @param	<R>	the type of the result.
+	 */
+	public interface Function<A, R> {
+		/**
+		 * Apply this function.
+		 *
+		 * @param	value	the value of the future.
+		 * @return	the value of the new future.
+		 */
+		R apply(A value) throws Exception;
+	}
+
+	/**
+	 * Allocate a new future, to be completed with <tt>complete()</tt> or
+	 * <tt>fail()</tt>.
+	 */
+	public KFuture() {
+	}
+
+	/**
+	 * Complete this future with a value, waking all threads waiting for it
+	 * and then running its callbacks. Does nothing if the future is already
+	 * complete.
+	 *
+	 * @param	value	the value.
+	 * @return	<tt>true</tt> if this call completed the future.
+	 */
+	public boolean complete(T value) {
+		return finish(value, null);
+	}
+
+	/**
+	 * Complete this future with an exception, waking all threads waiting for
+	 * it and then running its callbacks. Does nothing if the future is
+	 * already complete.
+	 *
+	 * @param	failure	the exception.
+	 * @return	<tt>true</tt> if this call completed the future.
+	 */
+	public boolean fail(Throwable failure) {
+		Lib.assertTrue(failure != null);
+		return finish(null, failure);
+	}
+
+	/**
+	 * Test if this future is complete.
+	 *
+	 * @return	<tt>true</tt> if the future has a value or an exception.
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Wait until this future is complete and return its value.
+	 *
+	 * @return	the value.
+	 * @throws	RuntimeException	if the future failed; the exception
+	 *					is the cause, or is rethrown as is if
+	 *					it is already unchecked.
+	 */
+	public T get() {
+		boolean intStatus = Interrupts.disable();
+
+		if (!done) {
+			if (waitQueue == null) {
+				// donate to the thread computing the value, if there is one
+				waitQueue = ThreadedKernel.scheduler.newThreadQueue(thread != null);
+				if (thread != null)
+					waitQueue.acquire(thread);
+			}
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Interrupts.restore(intStatus);
+
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new RuntimeException(failure);
+		return value;
+	}
+
+	/**
+	 * Return a future completed with <i>function</i> applied to the value of
+	 * this future, once this future is complete. If this future fails, or
+	 * the function throws, the new future fails with the same exception.
+	 *
+	 * @param	function	the function to apply.
+	 * @return	the new future.
+	 */
+	public <R> KFuture<R> thenApply(final Function<? super T, ? extends R> function) {
+		final KFuture<R> result = new KFuture<R>();
+
+		whenDone(new Runnable() {
+			public void run() {
+				if (failure != null) {
+					result.fail(failure);
+					return;
+				}
+
+				R applied;
+				try {
+					applied = function.apply(value);
+				}
+				catch (Throwable e) {
+					result.fail(e);
+					return;
+				}
+				result.complete(applied);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Return a future that is completed when all of the specified futures
+	 * are. It fails with the exception of the first of them to fail, once
+	 * all are complete.
+	 *
+	 * @param	futures	the futures to wait for.
+	 * @return	the new future, whose value is <tt>null</tt>.
+	 */
+	public static KFuture<Void> allOf(KFuture<?>... futures) {
+		final KFuture<Void> result = new KFuture<Void>();
+		final int[] pending = { futures.length };
+		final Throwable[] firstFailure = new Throwable[1];
+
+		if (futures.length == 0)
+			result.complete(null);
+
+		for (final KFuture<?> future : futures) {
+			future.whenDone(new Runnable() {
+				public void run() {
+					boolean intStatus = Interrupts.disable();
+					if (firstFailure[0] == null)
+						firstFailure[0] = future.failure;
+					boolean last = (--pending[0] == 0);
+					Interrupts.restore(intStatus);
+
+					if (!last)
+						return;
+					if (firstFailure[0] != null)
+						result.fail(firstFailure[0]);
+					else
+						result.complete(null);
+				}
+			});
+		}
+
+		return result;
+	}
+
+	/**
+	 * Run <i>task</i> and complete this future with its result. Called by the
+	 * thread <tt>KThread.submit()</tt> forks.
+	 */
+	void run(Callable<? extends T> task) {
+		T result;
+		try {
+			result = task.call();
+		}
+		catch (Throwable e) {
+			fail(e);
+			return;
+		}
+		complete(result);
+	}
+
+	/** Record the thread computing the value, for priority donation. */
+	void setThread(KThread thread) {
+		this.thread = thread;
+	}
+
+	/**
+	 * Run <i>callback</i> once this future is complete: at once if it
+	 * already is, otherwise in the thread that completes it.
+	 */
+	private void whenDone(Runnable callback) {
+		boolean intStatus = Interrupts.disable();
+
+		boolean now = done;
+		if (!now) {
+			if (callbacks == null)
+				callbacks = new ArrayList<Runnable>();
+			callbacks.add(callback);
+		}
+
+		Interrupts.restore(intStatus);
+
+		if (now)
+			callback.run();
+	}
+
+	/** Complete the future, wake its waiters, then run its callbacks. */
+	private boolean finish(T value, Throwable failure) {
+		boolean intStatus = Interrupts.disable();
+
+		if (done) {
+			Interrupts.restore(intStatus);
+			return false;
+		}
+
+		this.value = value;
+		this.failure = failure;
+		done = true;
+
+		if (waitQueue != null)
+			CountDownLatch.wakeAll(waitQueue);
+		ArrayList<Runnable> ready = callbacks;
+		callbacks = null;
+
+		Interrupts.restore(intStatus);
+
+		if (ready != null) {
+			for (Runnable callback : ready)
+				callback.run();
+		}
+		return true;
+	}
+
+	/**
+	 * Submit computations that each wait in the alarm, chain a
+	 * <tt>thenApply()</tt> onto each, and wait for all of them with
+	 * <tt>allOf()</tt>. Also checks that a failure reaches the waiters and
+	 * the dependent futures, and that a promise completed by another thread
+	 * wakes its waiter.
+	 */
+	public static void selfTest() {
+		int count = Config.getInteger("future.tasks", 16);
+		long start = Machine.timer().getTime();
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		KFuture<Integer>[] squares = new KFuture[count];
+		for (int i = 0; i < count; i++) {
+			final int n = i;
+			KFuture<Integer> future = KThread.submit(new Callable<Integer>() {
+				public Integer call() {
+					ThreadedKernel.alarm.waitUntil(100 * (n % 4 + 1));
+					return n;
+				}
+			});
+			squares[i] = future.thenApply(new Function<Integer, Integer>() {
+				public Integer apply(Integer value) {
+					return value * value;
+				}
+			});
+		}
+
+		KFuture<Void> all = allOf(squares);
+		Lib.assertTrue(!all.isDone());
+		all.get();
+		for (int i = 0; i < count; i++)
+			Lib.assertTrue(squares[i].isDone() && squares[i].get() == i * i);
+
+		// a failure reaches get() and dependent futures
+		KFuture<Integer> failed = KThread.submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				throw new Exception("expected failure");
+			}
+		});
+		KFuture<String> dependent = failed.thenApply(new Function<Integer, String>() {
+			public String apply(Integer value) {
+				Lib.assertNotReached();
+				return null;
+			}
+		});
+		boolean threw = false;
+		try {
+			dependent.get();
+		}
+		catch (RuntimeException e) {
+			threw = (e.getCause().getMessage().equals("expected failure"));
+		}
+		Lib.assertTrue(threw && allOf(failed, squares[0]).isDone());
+
+		// a promise completed by another thread
+		final KFuture<String> promise = new KFuture<String>();
+		new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(1000);
+				Lib.assertTrue(promise.complete("done"));
+			}
+		}).setName("promise completer").fork();
+		Lib.assertTrue(promise.get().equals("done"));
+		Lib.assertTrue(!promise.complete("again"));
+
+		System.out.println("KFuture," + count + "," + (Machine.timer().getTime() - start));
+	}
+
+	private boolean done = false;
+	private T value = null;
+	private Throwable failure = null;
+
+	/** The thread computing the value, if the future was submitted. */
+	private KThread thread = null;
+	/** Threads waiting in <tt>get()</tt>, allocated by the first of them. */
+	private ThreadQueue waitQueue = null;
+	/** Callbacks to run on completion, allocated by the first of them. */
+	private ArrayList<Runnable> callbacks = null;
+}
@@ -2,6 +2,11 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -47,7 +52,7 @@ public class KThread {
 			tcb = new TCB();
 		}	    
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);	    
 			ThreadedKernel.scheduler.getPriority(this);
 
@@ -73,6 +78,25 @@ public class KThread {
 		this.target = target;
 	}
 
+	/**
+	 * Allocate a thread that is never forked and has no TCB. Used by
+	 * <tt>SchedulerSimulator</tt> to drive scheduler queues.
+	 */
+	private KThread(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Allocate a simulated thread. It can be placed on scheduler queues but
+	 * can never run.
+	 *
+	 * @param	name	the name to give to this thread.
+	 * @return	the new thread.
+	 */
+	static KThread newSimulatedThread(String name) {
+		return new KThread(name);
+	}
+
 	/**
 	 * Set the target of this thread.
 	 *
@@ -150,7 +174,7 @@ public class KThread {
 		Lib.debug(dbgThread,
 				"Forking thread: " + toString() + " Runnable: " + target);
 
-		boolean intStatus = Machine.interrupt().disable();
+		boolean intStatus = Interrupts.disable();
 
 		tcb.start(new Runnable() 	{ 
 			public void run() 	{ 
@@ -161,7 +185,7 @@ public class KThread {
 		//ThreadedKernel.scheduler.initThreadState(this);
 		ready();
 
-		Machine.interrupt().restore(intStatus);
+		Interrupts.restore(intStatus);
 	}
 
 
@@ -173,7 +197,7 @@ public class KThread {
 //		Lib.debug(dbgThread,
 //				"Forking thread: " + toString() + " Runnable: " + target);
 //
-//		boolean intStatus = Machine.interrupt().disable();
+//		boolean intStatus = Interrupts.disable();
 //
 //		tcb.start(new Runnable() 	{ 
 //			public void run() 	{ 
@@ -185,7 +209,7 @@ public class KThread {
 //		((StaticPriorityScheduler) ThreadedKernel.scheduler).setPriority(priority);
 //		ready();
 //
-//		Machine.interrupt().restore(intStatus);
+//		Interrupts.restore(intStatus);
 //	}
 
 	private void runThread() {
@@ -201,7 +225,7 @@ public class KThread {
 
 		restoreState();
 
-		Machine.interrupt().enable();
+		Interrupts.enable();
 	}
 
 	/**
@@ -217,7 +241,7 @@ public class KThread {
 	public static void finish() {
 		Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
 
-		Machine.interrupt().disable();
+		Interrupts.disable();
 
 		Machine.autoGrader().finishingCurrentThread();
 
@@ -227,6 +251,15 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 
+		// wake the joiners, or move joinAll() callers on to their next target
+		if (currentThread.joinQueue != null) {
+			KThread joiner;
+			while ((joiner = currentThread.joinQueue.nextThread()) != null) {
+				if (joiner.joinTargets == null || !joiner.joinNext())
+					joiner.ready();
+			}
+		}
+
 		sleep();
 	}
 
@@ -251,13 +284,13 @@ public class KThread {
 
 		Lib.assertTrue(currentThread.status == statusRunning);
 
-		boolean intStatus = Machine.interrupt().disable();
+		boolean intStatus = Interrupts.disable();
 
 		currentThread.ready();
 		currentThread.updatePriority();
 		runNextThread();
 
-		Machine.interrupt().restore(intStatus);
+		Interrupts.restore(intStatus);
 	}
 
 	/**
@@ -276,8 +309,10 @@ public class KThread {
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		if (currentThread.status != statusFinished)
+		if (currentThread.status != statusFinished) {
 			currentThread.status = statusBlocked;
+			currentThread.thdSchedState.logBlocked();
+		}
 
 		runNextThread();
 	}
@@ -311,15 +346,106 @@ public class KThread {
 
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
-	 * return immediately. This method must only be called once; the second
-	 * call is not guaranteed to return. This thread must not be the current
-	 * thread.
+	 * return immediately. This thread must not be the current thread.
+	 *
+	 * <p>
+	 * The joining thread waits in a queue owned by this thread, so it donates
+	 * its priority to this thread until this thread finishes. The queue is
+	 * allocated by the first joiner; a thread that is never joined has none.
 	 */
 	public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 		Lib.assertTrue(this != currentThread);
 
+		boolean intStatus = Interrupts.disable();
+
+		if (status != statusFinished) {
+			addJoiner(currentThread);
+			sleep();
+		}
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Waits for all of the specified threads to finish. The current thread
+	 * sleeps once: it waits in the join queue of the first unfinished thread,
+	 * and when that thread finishes it is moved to the queue of the next
+	 * unfinished one instead of being woken, so it always donates its
+	 * priority to a thread it is waiting for.
+	 *
+	 * @param	threads	the threads to wait for. Must not include the
+	 *			current thread, and must not change until this
+	 *			method returns.
+	 */
+	public static void joinAll(Collection<KThread> threads) {
+		boolean intStatus = Interrupts.disable();
+
+		KThread joiner = currentThread;
+		joiner.joinTargets = threads.iterator();
+		if (joiner.joinNext())
+			sleep();
+		joiner.joinTargets = null;
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Fork a thread to run <i>task</i>, and return a future for its result.
+	 * The thread has the current thread's priority, and threads waiting for
+	 * the future donate their priority to it.
+	 *
+	 * @param	task	the computation to run.
+	 * @return	a future completed with the value <i>task</i> returns, or
+	 *		failed with the exception it throws.
+	 */
+	public static <T> KFuture<T> submit(final Callable<? extends T> task) {
+		final KFuture<T> future = new KFuture<T>();
+		KThread thread = new KThread(new Runnable() {
+			public void run() {
+				future.run(task);
+			}
+		}).setName("future");
+		future.setThread(thread);
+
+		boolean intStatus = Interrupts.disable();
+		ThreadedKernel.scheduler.setPriority(thread, ThreadedKernel.scheduler.getPriority());
+		Interrupts.restore(intStatus);
+
+		thread.fork();
+		return future;
+	}
+
+	/**
+	 * Queue <i>joiner</i> to wait for this thread, allocating the join queue
+	 * the first time. Must be called with interrupts disabled.
+	 */
+	private void addJoiner(KThread joiner) {
+		if (joinQueue == null) {
+			joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+			joinQueue.acquire(this);
+		}
+		joinQueue.waitForAccess(joiner);
+	}
+
+	/**
+	 * Queue this thread to wait for the next unfinished thread of a
+	 * <tt>joinAll()</tt>. Must be called with interrupts disabled.
+	 *
+	 * @return	<tt>true</tt> if this thread is now waiting, <tt>false</tt>
+	 *		if all of the threads have finished.
+	 */
+	private boolean joinNext() {
+		while (joinTargets.hasNext()) {
+			KThread target = joinTargets.next();
+			Lib.assertTrue(target != this);
+			if (target.status != statusFinished) {
+				target.addJoiner(this);
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -387,7 +513,8 @@ public class KThread {
 				+ " to: " + toString());
 
 		currentThread = this;
-		this.thdSchedState.logScheduled();
+		if (this != idleThread)
+			this.thdSchedState.logScheduled();
 
 		tcb.contextSwitch();
 
@@ -436,6 +563,25 @@ public class KThread {
 		}
 	}
 	
+	/** Runs a fixed number of iterations, optionally yielding at an interval. */
+	private static class BusyRunFor implements Runnable {
+		BusyRunFor(long work, long yieldInterval) {
+			this.work = work;
+			this.yieldInterval = yieldInterval;
+		}
+		
+		public void run() {
+			for (long i=1; i<=work; i++) {
+				if (yieldInterval > 0 && i%yieldInterval == 0) {
+					KThread.yield();
+				}
+			}
+		}
+		
+		private long work;
+		private long yieldInterval;
+	}
+	
 	private static class BusyRunNoYield implements Runnable {
 		public void run() {
 			for (long i=0; i<1000000001; i++) {
@@ -451,11 +597,11 @@ public class KThread {
 	
 	private static class RunThreeNoYield21 implements Runnable {
 		public void run() {
-			boolean intState = Machine.interrupt().disable();
+			boolean intState = Interrupts.disable();
 			KThread newthread = new KThread (new RunThreeNoYield11());
 			ThreadedKernel.scheduler.setPriority(newthread, 11);
 			newthread.fork();
-			Machine.interrupt().setStatus(intState);
+			Interrupts.restore(intState);
 			
 			for (long i=0; i<1000000001; i++) {
 				long j = i%100000000;
@@ -468,11 +614,11 @@ public class KThread {
 	
 	private static class RunThreeNoYield11 implements Runnable {
 		public void run() {
-			boolean intState = Machine.interrupt().disable();
+			boolean intState = Interrupts.disable();
 			KThread newthread = new KThread (new BusyRunNoYield());
 			ThreadedKernel.scheduler.setPriority(newthread, 1);
 			newthread.fork();
-			Machine.interrupt().setStatus(intState);
+			Interrupts.restore(intState);
 			
 			for (long i=0; i<1000000001; i++) {
 				long j = i%100000000;
@@ -485,11 +631,11 @@ public class KThread {
 	
 	private static class RunThreeWithYield21 implements Runnable {
 		public void run() {
-			boolean intState = Machine.interrupt().disable();
+			boolean intState = Interrupts.disable();
 			KThread newthread = new KThread (new RunThreeWithYield11());
 			ThreadedKernel.scheduler.setPriority(newthread, 11);
 			newthread.fork();
-			Machine.interrupt().setStatus(intState);
+			Interrupts.restore(intState);
 			
 			for (long i=0; i<1000000001; i++) {
 				long j = i%100000000;
@@ -503,11 +649,11 @@ public class KThread {
 	
 	private static class RunThreeWithYield11 implements Runnable {
 		public void run() {
-			boolean intState = Machine.interrupt().disable();
+			boolean intState = Interrupts.disable();
 			KThread newthread = new KThread (new BusyRunWithYield());
 			ThreadedKernel.scheduler.setPriority(newthread, 1);
 			newthread.fork();
-			Machine.interrupt().setStatus(intState);
+			Interrupts.restore(intState);
 			
 			for (long i=0; i<1000000001; i++) {
 				long j = i%100000000;
@@ -551,6 +697,75 @@ public class KThread {
 			case 6:
 				st6();
 				break;
+				
+			case 7:
+				st7();
+				break;
+				
+			case 8:
+				st8();
+				break;
+				
+			case 9:
+				SchedulerSimulator.selfTest();
+				break;
+				
+			case 10:
+				st10();
+				break;
+				
+			case 11:
+				WorkloadGenerator.selfTest();
+				break;
+				
+			case 12:
+				st12();
+				break;
+				
+			case 13:
+				TaskExecutor.selfTest();
+				break;
+				
+			case 14:
+				WorkQueue.selfTest();
+				break;
+				
+			case 15:
+				Condition2.selfTest();
+				break;
+				
+			case 16:
+				Communicator.selfTest();
+				break;
+				
+			case 17:
+				SynchList.selfTest();
+				break;
+				
+			case 18:
+				ReadWriteLock.selfTest();
+				break;
+				
+			case 19:
+				Semaphore.selfTest();
+				Lock.selfTest();
+				break;
+				
+			case 20:
+				Phaser.selfTest();
+				break;
+				
+			case 21:
+				st21();
+				break;
+				
+			case 22:
+				KFuture.selfTest();
+				break;
+				
+			case 23:
+				BottomHalves.selfTest();
+				break;
 			
 		}
 		
@@ -561,32 +776,32 @@ public class KThread {
 	/** Self test 1 forks six threads of equal (medium) priority. The threads will not yield
 	 * while executing. */
 	private static void st1() {
-		boolean intState = Machine.interrupt().disable();
+		boolean intState = Interrupts.disable();
 		for (int i = 0; i<6; i++) {
 			KThread newthread = new KThread (new BusyRunNoYield()).setName("Forked Thread");
 			ThreadedKernel.scheduler.setPriority(newthread, 15);
 			newthread.fork();
 		}
-		Machine.interrupt().setStatus(intState);
+		Interrupts.restore(intState);
 	}
 	
 	/** Self test 2 forks six threads of equal (medium) priority. The threads will undergo
 	 * a CPU burst and then yield, five times each. */
 	private static void st2() {
-		boolean intState = Machine.interrupt().disable();
+		boolean intState = Interrupts.disable();
 		for (int i = 0; i<6; i++) {
 			KThread newthread = new KThread (new BusyRunWithYield()).setName("Forked Thread");
 			ThreadedKernel.scheduler.setPriority(newthread, 15);
 			newthread.fork();
 		}
-		Machine.interrupt().setStatus(intState);
+		Interrupts.restore(intState);
 	}
 	
 	/** Self test 3 forks three threads of increasing priority. They race to acquire the CPU
 	 * and will not yield until they finish executing. */
 	private static void st3() {
 		
-		boolean intState = Machine.interrupt().disable();
+		boolean intState = Interrupts.disable();
 		
 		KThread newguy1 = new KThread(new BusyRunNoYield()).setName("forked thread");
 		ThreadedKernel.scheduler.setPriority(newguy1, 30);
@@ -600,14 +815,14 @@ public class KThread {
 		ThreadedKernel.scheduler.setPriority(newguy3, 1);
 		newguy3.fork();
 		
-		Machine.interrupt().setStatus(intState);
+		Interrupts.restore(intState);
 	}
 	
 	/** Self test 4 forks three threads of increasing priority. They race to acquire the CPU
 	 * and will perform alternating CPU bursts and yields five times each. */
 	private static void st4() {
 		
-		boolean intState = Machine.interrupt().disable();
+		boolean intState = Interrupts.disable();
 		
 		KThread newguy1 = new KThread(new BusyRunWithYield()).setName("forked thread");
 		ThreadedKernel.scheduler.setPriority(newguy1, 30);
@@ -621,27 +836,211 @@ public class KThread {
 		ThreadedKernel.scheduler.setPriority(newguy3, 1);
 		newguy3.fork();
 		
-		Machine.interrupt().setStatus(intState);
+		Interrupts.restore(intState);
 	}
 	
 	/** Self test 5 forks three threads recursively with increasing priority. The threads
 	 * do not yield.*/
 	private static void st5() {
-		boolean intState = Machine.interrupt().disable();
+		boolean intState = Interrupts.disable();
 		KThread newguy = new KThread(new RunThreeNoYield21()).setName("forked thread");
 		ThreadedKernel.scheduler.setPriority(newguy, 21);
 		newguy.fork();
-		Machine.interrupt().setStatus(intState);
+		Interrupts.restore(intState);
 	}
 	
 	/** Self test 6 forks three threads recursively with increasing priority. The threads
 	 * alternately perform computation and yield 5 times.*/
 	private static void st6() {
-		boolean intState = Machine.interrupt().disable();
+		boolean intState = Interrupts.disable();
 		KThread newguy = new KThread(new RunThreeWithYield21()).setName("forked thread");
 		ThreadedKernel.scheduler.setPriority(newguy, 21);
 		newguy.fork();
-		Machine.interrupt().setStatus(intState);
+		Interrupts.restore(intState);
+	}
+	
+	/** Self test 10 is the parameterized benchmark workload. It forks
+	 * <tt>benchmark.threads</tt> threads that each run <tt>benchmark.work</tt>
+	 * iterations; the first <tt>benchmark.yielders</tt> of them yield every
+	 * <tt>benchmark.yieldInterval</tt> iterations. Priorities are drawn from
+	 * [<tt>benchmark.minPriority</tt>, <tt>benchmark.maxPriority</tt>] with the
+	 * machine's random seed, so a run is repeatable with <tt>-s</tt>. */
+	private static void st10() {
+		int threads = Config.getInteger("benchmark.threads", 20);
+		int yielders = Config.getInteger("benchmark.yielders", 0);
+		long work = Config.getInteger("benchmark.work", 10000000);
+		long yieldInterval = Config.getInteger("benchmark.yieldInterval", 1000000);
+		int minPriority = Config.getInteger("benchmark.minPriority", 15);
+		int maxPriority = Config.getInteger("benchmark.maxPriority", 15);
+		
+		boolean intState = Interrupts.disable();
+		for (int i = 0; i<threads; i++) {
+			KThread newthread = new KThread(new BusyRunFor(work,
+					(i < yielders) ? yieldInterval : 0)).setName("benchmark thread");
+			ThreadedKernel.scheduler.setFixPriority(newthread,
+					minPriority + Lib.random(maxPriority - minPriority + 1));
+			newthread.fork();
+		}
+		Interrupts.restore(intState);
+	}
+	
+	/** Self test 12 places four yielding threads in one scheduling group and
+	 * one in another of equal weight. Under a fair-share scheduler the lone
+	 * thread gets about half of the CPU; compare the <tt>Group</tt> rows. Also
+	 * checks that a group whose threads have all finished can take children. */
+	private static void st12() {
+		boolean intState = Interrupts.disable();
+		SchedulingGroup crowded = ThreadedKernel.scheduler.createGroup(null, "crowded", 1024);
+		SchedulingGroup alone = ThreadedKernel.scheduler.createGroup(null, "alone", 1024);
+		if (crowded == null) {
+			System.out.println("Scheduler does not support scheduling groups.");
+			Interrupts.restore(intState);
+			return;
+		}
+		
+		for (int i = 0; i<5; i++) {
+			KThread newthread = new KThread(new BusyRunFor(200000000, 10000000))
+					.setName("group thread");
+			ThreadedKernel.scheduler.setPriority(newthread, 15);
+			ThreadedKernel.scheduler.setGroup(newthread, (i < 4) ? crowded : alone);
+			newthread.fork();
+		}
+		
+		SchedulingGroup emptied = ThreadedKernel.scheduler.createGroup(null, "emptied", 1024);
+		KThread brief = new KThread(new Runnable() {
+			public void run() {
+			}
+		}).setName("brief group thread");
+		ThreadedKernel.scheduler.setGroup(brief, emptied);
+		brief.fork();
+		Interrupts.restore(intState);
+		
+		brief.join();
+		intState = Interrupts.disable();
+		Lib.assertTrue(ThreadedKernel.scheduler.createGroup(emptied, "emptied child", 1024) != null);
+		Interrupts.restore(intState);
+	}
+	
+	/** Self test 21 checks <tt>join()</tt> and <tt>joinAll()</tt>: a high-priority
+	 * joiner donates its priority to the thread it joins, joining a finished
+	 * thread returns at once, and <tt>joinAll()</tt> returns only after every
+	 * target has finished, whatever order they finish in. */
+	private static void st21() {
+		final int[] finished = new int[1];
+		long start = Machine.timer().getTime();
+
+		final KThread target = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(5000);
+				finished[0]++;
+			}
+		}).setName("join target");
+		KThread joiner = new KThread(new Runnable() {
+			public void run() {
+				target.join();
+				Lib.assertTrue(finished[0] == 1);
+			}
+		}).setName("urgent joiner");
+
+		boolean intState = Interrupts.disable();
+		ThreadedKernel.scheduler.setPriority(target, 20);
+		ThreadedKernel.scheduler.setPriority(joiner, 1);
+		Interrupts.restore(intState);
+		target.fork();
+		joiner.fork();
+
+		ThreadedKernel.alarm.waitUntil(1000);
+		intState = Interrupts.disable();
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(target) == 1);
+		Interrupts.restore(intState);
+
+		target.join();
+		joiner.join();
+		Lib.assertTrue(finished[0] == 1);
+		target.join();
+
+		// targets finish in the reverse of the order they are joined in
+		int count = Config.getInteger("join.threads", 16);
+		ArrayList<KThread> threads = new ArrayList<KThread>();
+		for (int i = 0; i < count; i++) {
+			final long delay = 100 * (count - i);
+			KThread thread = new KThread(new Runnable() {
+				public void run() {
+					ThreadedKernel.alarm.waitUntil(delay);
+					finished[0]++;
+				}
+			}).setName("joinAll target " + i);
+			threads.add(thread);
+			thread.fork();
+		}
+		joinAll(threads);
+		Lib.assertTrue(finished[0] == count + 1);
+
+		System.out.println("KThread,join," + count + "," + (Machine.timer().getTime() - start));
+	}
+	
+	/** Self test 7 forks two yielding threads of medium priority and one yielding
+	 * real-time thread of low priority. The real-time thread runs first while its
+	 * job has budget left; once it overruns, it competes at its normal priority
+	 * until its next job is released. */
+	private static void st7() {
+		boolean intState = Interrupts.disable();
+		for (int i = 0; i<2; i++) {
+			KThread newthread = new KThread (new BusyRunWithYield()).setName("forked thread");
+			ThreadedKernel.scheduler.setPriority(newthread, 15);
+			newthread.fork();
+		}
+		KThread rtthread = new KThread(new BusyRunWithYield()).setName("real-time thread");
+		ThreadedKernel.scheduler.setPriority(rtthread, 30);
+		Lib.assertTrue(ThreadedKernel.scheduler.setDeadline(rtthread, 1000, 500));
+		rtthread.fork();
+		Interrupts.restore(intState);
+	}
+	
+	/** Self test 8 checks priority donation. A low priority thread holds a lock
+	 * when a high priority thread blocks on it, and must run with the waiter's
+	 * priority until it releases the lock. */
+	private static void st8() {
+		final Lock lock = new Lock();
+		
+		final KThread waiter = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				lock.release();
+			}
+		}).setName("lock waiter");
+		
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				
+				boolean intState = Interrupts.disable();
+				ThreadedKernel.scheduler.setPriority(waiter, 1);
+				waiter.fork();
+				Interrupts.restore(intState);
+				
+				// the waiter runs, blocks on the lock and donates its priority
+				while (waiter.status != statusBlocked)
+					KThread.yield();
+				
+				intState = Interrupts.disable();
+				Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() == 1,
+						"Lock holder did not receive donated priority.");
+				Interrupts.restore(intState);
+				
+				lock.release();
+				
+				intState = Interrupts.disable();
+				Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() == 10,
+						"Lock holder kept donated priority after release.");
+				Interrupts.restore(intState);
+			}
+		}).setName("lock holder");
+		
+		boolean intState = Interrupts.disable();
+		ThreadedKernel.scheduler.setPriority(holder, 10);
+		holder.fork();
+		Interrupts.restore(intState);
 	}
 	
 	public boolean isIdleThread() {
@@ -652,6 +1051,17 @@ public class KThread {
 		return (this.id == 0);
 	}
 	
+	/** Tests whether this thread has been placed on the ready queue. */
+	public boolean isReady() {
+		return (this.status == statusReady);
+	}
+	
+	/** Mark a simulated thread as ready or running. */
+	void setSimulatedReady(boolean ready) {
+		Lib.assertTrue(tcb == null);
+		status = ready ? statusReady : statusRunning;
+	}
+	
 
 	/** Update priority of the thread after running by some scheduler-dependent aging function.
 	 * To be called when the thread is switched off the CPU. */
@@ -690,6 +1100,13 @@ public class KThread {
 	private Runnable target;
 	private TCB tcb;
 
+	/** Threads waiting in <tt>join()</tt> for this thread, allocated by the
+	 * first of them. */
+	private ThreadQueue joinQueue = null;
+	/** The threads left to wait for while this thread is in
+	 * <tt>joinAll()</tt>. */
+	private Iterator<KThread> joinTargets = null;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -0,0 +1,93 @@
+package nachos.threads;
+
+/**
+ * A histogram of non-negative latencies with logarithmic buckets, in the
+ * style of HdrHistogram. Every power of two is split into
+ * {@value #subBuckets} linear sub-buckets, so any recorded value is reported
+ * to within about 6% while the whole <tt>long</tt> range fits in a fixed
+ * array of under a thousand counters. Recording is O(1) and allocation free.
+ */
+public class LatencyHistogram {
+	/** Sub-buckets per power of two, as a power of two. */
+	private static final int subBucketBits = 4;
+	private static final int subBuckets = 1 << subBucketBits;
+
+	/** Enough buckets for every non-negative <tt>long</tt>. */
+	private static final int numBuckets = (64 - subBucketBits) * subBuckets;
+
+	/**
+	 * Allocate a new, empty histogram.
+	 */
+	public LatencyHistogram() {
+	}
+
+	/** Record one value. Negative values are recorded as 0. */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		counts[bucketOf(value)]++;
+		count++;
+		if (value > max)
+			max = value;
+	}
+
+	/** Return the number of values recorded. */
+	public long getCount() {
+		return count;
+	}
+
+	/** Return the largest value recorded, or 0 if none. */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Return the value at the specified percentile: the upper end of the
+	 * bucket holding the value below which <i>percentile</i> percent of the
+	 * recorded values fall, but never more than the largest value recorded.
+	 *
+	 * @param	percentile	a percentile between 0 and 100.
+	 * @return	the value at that percentile, or 0 if the histogram is empty.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < numBuckets; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highestInBucket(i), max);
+		}
+		return max;
+	}
+
+	/** Return the bucket that holds the specified value. */
+	private static int bucketOf(long value) {
+		if (value < subBuckets)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - subBucketBits;
+		return (shift + 1) * subBuckets + (int) (value >>> shift) - subBuckets;
+	}
+
+	/** Return the largest value that falls in the specified bucket. */
+	private static long highestInBucket(int bucket) {
+		if (bucket < 2*subBuckets)
+			return bucket;
+
+		int shift = bucket / subBuckets - 1;
+		long lowest = ((long) (bucket % subBuckets + subBuckets)) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	private long[] counts = new long[numBuckets];
+	private long count = 0;
+	private long max = 0;
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayDeque;
+
 /**
  * A <tt>Lock</tt> is a synchronization primitive that has two states,
  * <i>busy</i> and <i>free</i>. There are only two operations allowed on a
@@ -18,6 +20,12 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * Lightweight tasks acquire a lock with <tt>acquire(Runnable)</tt>. A lock
+ * held by a task is held by the thread of <tt>ThreadedKernel.tasks</tt>, so
+ * threads waiting for it donate their priority to that thread, and the task
+ * releases it with <tt>release()</tt> from one of its steps.
  */
 public class Lock {
     /**
@@ -33,7 +41,7 @@ public class Lock {
     public void acquire() {
 	Lib.assertTrue(!isHeldByCurrentThread());
 
-	boolean intStatus = Machine.interrupt().disable();
+	boolean intStatus = Interrupts.disable();
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
@@ -47,21 +55,96 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
-	Machine.interrupt().restore(intStatus);
+	Interrupts.restore(intStatus);
+    }
+
+    /**
+     * Acquire this lock if it is <i>free</i>, without waiting. The current
+     * thread must not already hold this lock.
+     *
+     * @return	<tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire() {
+	return acquire(0);
+    }
+
+    /**
+     * Acquire this lock, waiting at most <i>ticks</i> for it to become
+     * <i>free</i>. The current thread must not already hold this lock. A
+     * thread that times out is removed from the wait queue by the alarm, so
+     * it stops donating its priority to the holder.
+     *
+     * @param	ticks	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the lock was acquired, <tt>false</tt> if the
+     *		wait timed out.
+     */
+    public boolean acquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Interrupts.disable();
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+	else if (ticks > 0) {
+	    waitQueue.waitForAccess(thread);
+	    Alarm.Timeout timeout =
+		ThreadedKernel.alarm.setTimeout(thread, waitQueue, ticks);
+	    KThread.sleep();
+	    timeout.cancel();
+	}
+
+	// release() hands the lock over, so a woken waiter already holds it
+	boolean acquired = (lockHolder == thread);
+
+	Interrupts.restore(intStatus);
+
+	return acquired;
+    }
+
+    /**
+     * Asynchronous <tt>acquire()</tt> for lightweight tasks. Acquire this
+     * lock on behalf of the calling task as soon as it is <i>free</i>, then
+     * run <i>continuation</i> on <tt>ThreadedKernel.tasks</tt>. Never blocks
+     * the caller.
+     *
+     * @param	continuation	the next step of the calling task.
+     */
+    public void acquire(Runnable continuation) {
+	Lib.assertTrue(continuation != null);
+
+	boolean intStatus = Interrupts.disable();
+
+	if (lockHolder != null) {
+	    if (taskWaiters == null)
+		taskWaiters = new ArrayDeque<Runnable>();
+	    taskWaiters.add(continuation);
+	}
+	else {
+	    grantToTask(continuation);
+	}
+
+	Interrupts.restore(intStatus);
     }
 
     /**
      * Atomically release this lock, allowing other threads to acquire it.
+     * Threads waiting in <tt>acquire()</tt> are preferred to tasks waiting
+     * in <tt>acquire(Runnable)</tt>.
      */
     public void release() {
 	Lib.assertTrue(isHeldByCurrentThread());
 
-	boolean intStatus = Machine.interrupt().disable();
+	boolean intStatus = Interrupts.disable();
 
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
+	else if (taskWaiters != null && !taskWaiters.isEmpty())
+	    grantToTask(taskWaiters.poll());
 	
-	Machine.interrupt().restore(intStatus);
+	Interrupts.restore(intStatus);
     }
 
     /**
@@ -73,7 +156,69 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Test <tt>tryAcquire()</tt> and timed <tt>acquire()</tt>: a waiter
+     * times out while another thread holds the lock, a waiter gets the lock
+     * when it is released in time, and a high-priority waiter that times out
+     * stops donating to the holder.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	final long start = Machine.timer().getTime();
+
+	lock.acquire();
+	new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(!lock.tryAcquire());
+		    Lib.assertTrue(!lock.acquire(1000));
+		    Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+		    Lib.assertTrue(lock.acquire(100000));
+		    lock.release();
+		}
+	    }).setName("timed acquirer").fork();
+
+	ThreadedKernel.alarm.waitUntil(5000);
+	lock.release();
+
+	// the lock is handed to the waiter, and then free again
+	ThreadedKernel.alarm.waitUntil(1000);
+	Lib.assertTrue(lock.tryAcquire());
+
+	boolean intStatus = Interrupts.disable();
+	int priority = ThreadedKernel.scheduler.getEffectivePriority();
+	Interrupts.restore(intStatus);
+
+	KThread urgent = new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(!lock.acquire(2000));
+		}
+	    }).setName("urgent acquirer");
+	intStatus = Interrupts.disable();
+	ThreadedKernel.scheduler.setPriority(urgent, 1);
+	Interrupts.restore(intStatus);
+	urgent.fork();
+
+	ThreadedKernel.alarm.waitUntil(5000);
+	intStatus = Interrupts.disable();
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() == priority);
+	Interrupts.restore(intStatus);
+	lock.release();
+
+	System.out.println("Lock," + (Machine.timer().getTime() - start));
+    }
+
+    /** Make the executor's thread the holder and schedule the task. */
+    private void grantToTask(Runnable continuation) {
+	lockHolder = ThreadedKernel.tasks.getThread();
+	waitQueue.acquire(lockHolder);
+	ThreadedKernel.tasks.execute(continuation);
+    }
+
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
+    /** Continuations of tasks waiting in <tt>acquire(Runnable)</tt>,
+     * allocated on first use. */
+    private ArrayDeque<Runnable> taskWaiters = null;
 }
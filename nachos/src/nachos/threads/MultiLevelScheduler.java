@@ -1,7 +1,8 @@
 package nachos.threads;
 
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
-import java.util.ListIterator;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
@@ -11,6 +12,25 @@ public class MultiLevelScheduler extends PriorityScheduler {
 		super();
 	}
 	
+	
+	/**
+	 * Set the time quantum of each of the three tiers, as specified in the
+	 * config file: <tt>tier1,tier2,tier3</tt> in ticks. Overrides any
+	 * per-priority quanta. A <tt>null</tt> spec leaves them in place.
+	 */
+	protected void setLevelQuanta(String spec) {
+		if (spec == null) return;
+		
+		String[] levels = spec.split(",");
+		Lib.assertTrue(levels.length == 3, "Expected three tier quanta: " + spec);
+		
+		quanta = new long[Math.max(priorityMaximum, 21) + 1];
+		for (int p = priorityMinimum; p < quanta.length; p++) {
+			int level = (p <= 10) ? 0 : (p <= 20) ? 1 : 2;
+			quanta[p] = Long.parseLong(levels[level].trim());
+		}
+	}
+	
 
 	
 	public ThreadState getThreadState(KThread thread) {
@@ -48,7 +68,7 @@ public class MultiLevelScheduler extends PriorityScheduler {
 		public void ageValUp() {
 			if (this.thread.isIdleThread()) return;
 			int oldPriority = this.getPriority();
-			long curtime = kernel.getTime();
+			long curtime = getTime();
 			long newRunTime = curtime + uncountedRunTime - this.lastScheduled;
 			int increment = (int) (newRunTime/( (long) agingTime));
 			this.uncountedRunTime = newRunTime % agingTime;
@@ -58,7 +78,7 @@ public class MultiLevelScheduler extends PriorityScheduler {
 		public void ageValDown() {
 			if (this.thread.isIdleThread()) return;
 			int oldPriority = this.getPriority();
-			long curtime = kernel.getTime();
+			long curtime = getTime();
 			if (lastWaitAgeTime < lastEnqueued) lastWaitAgeTime = lastEnqueued;
 			if (lastWaitAgeTime < 0) return;
 			long newWaitTime = curtime + uncountedWaitTime - lastWaitAgeTime;
@@ -72,49 +92,57 @@ public class MultiLevelScheduler extends PriorityScheduler {
 	
 	private class PriorityThreadQueue extends PriorityScheduler.PriorityThreadQueue {
 
-		/** FIFO queue for tier 1 (priority 1 through 10) */
-		LinkedList<KThread> lev1;
+		/** FIFO queue for tier 1 (priority 1 through 10). Each tier is a
+		 * linked hash set, so a waiter can be removed in constant time. */
+		LinkedHashSet<KThread> lev1;
 		
 		/** FIFO queue for tier 2 (priority 11 through 20). */
-		LinkedList<KThread> lev2;
+		LinkedHashSet<KThread> lev2;
 		
 		/** FIFO queue for tier 3 (priority 21 and above). */
-		LinkedList<KThread> lev3;
+		LinkedHashSet<KThread> lev3;
 		
 		KThread main;
 		
 		public PriorityThreadQueue(boolean transferPriority) {
 			super(transferPriority);
 			
-			lev1 = new LinkedList<KThread>();
-			lev2 = new LinkedList<KThread>();
-			lev3 = new LinkedList<KThread>();
+			lev1 = new LinkedHashSet<KThread>();
+			lev2 = new LinkedHashSet<KThread>();
+			lev3 = new LinkedHashSet<KThread>();
 		}
 
 		@Override
-		public void waitForAccess(KThread thread) {
+		protected void enqueue(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled(), "Interrupts not disabled in critical section.");
 			
 			if (thread.isMainThread()) {
 				this.main = thread;
 			}
 			else {
-				enqueue(thread);
+				enqueueLevel(thread);
 			}
 		}
 		
-		private void enqueue(KThread thread) {
-			int p = thread.thdSchedState.getPriority();
+		private void enqueueLevel(KThread thread) {
+			int p = thread.thdSchedState.getEffectivePriority();
 			Lib.assertTrue(p <= priorityMaximum && p >= 1);
 			if (1 <= p && p <= 10) lev1.add(thread);
 			else if (11 <= p && p <= 20) lev2.add(thread);
 			else lev3.add(thread);
 		}
 		
-		private KThread dequeue() {
-			if (!lev1.isEmpty()) return lev1.removeFirst();
-			if (!lev2.isEmpty()) return lev2.removeFirst();
-			return lev3.removeFirst();
+		private KThread dequeueLevel() {
+			if (!lev1.isEmpty()) return removeFirst(lev1);
+			if (!lev2.isEmpty()) return removeFirst(lev2);
+			return removeFirst(lev3);
+		}
+		
+		private KThread removeFirst(LinkedHashSet<KThread> level) {
+			Iterator<KThread> i = level.iterator();
+			KThread thread = i.next();
+			i.remove();
+			return thread;
 		}
 
 		@Override
@@ -122,19 +150,34 @@ public class MultiLevelScheduler extends PriorityScheduler {
 		    Lib.assertTrue(Machine.interrupt().disabled());
 		       
 		    Lib.assertTrue(lev1.isEmpty());
+		    super.acquire(thread);
 		}
 
 		@Override
-		public KThread nextThread() {
-			if (this.isEmpty()) return main;
+		protected KThread dequeue() {
+			if (this.isEmpty()) {
+				// Hand out the main thread only once, so that a lock queue it
+				// waited on once does not keep returning it.
+				KThread m = main;
+				main = null;
+				return m;
+			}
 			this.ageWaiting();
-			return dequeue();
+			return dequeueLevel();
 		}
 		
 		public boolean isEmpty() {
 			return (lev1.isEmpty() && lev2.isEmpty() && lev3.isEmpty());
 		}
 		
+		/** Remove a waiting thread, in constant time. */
+		protected void removeWaiter(KThread thread) {
+			if (thread == main)
+				main = null;
+			else if (!lev1.remove(thread) && !lev2.remove(thread))
+				lev3.remove(thread);
+		}
+		
 		
 		protected void ageWaiting() {
 			Lib.assertTrue(Machine.interrupt().disabled());
@@ -146,24 +189,24 @@ public class MultiLevelScheduler extends PriorityScheduler {
 			ageLevel(this.lev3, requeue, 21);
 			
 			for (KThread thread : requeue) {
-				this.enqueue(thread);
+				this.enqueueLevel(thread);
 			}
 			
 			
 		}
 		
-		private void ageLevel(LinkedList<KThread> level, LinkedList<KThread> requeue, int min) {
+		private void ageLevel(LinkedHashSet<KThread> level, LinkedList<KThread> requeue, int min) {
 			this.ageLevel(level, requeue, min, priorityMaximum);
 		}
 		
-		private void ageLevel(LinkedList<KThread> level, LinkedList<KThread> requeue, int min, int max) {
+		private void ageLevel(LinkedHashSet<KThread> level, LinkedList<KThread> requeue, int min, int max) {
 			KThread curthread;
-			ListIterator<KThread> li = level.listIterator();
+			Iterator<KThread> li = level.iterator();
 			
 			while (li.hasNext()) {
 				curthread = li.next();
 				curthread.thdSchedState.ageValDown();
-				int p = curthread.thdSchedState.getPriority();
+				int p = curthread.thdSchedState.getEffectivePriority();
 				if (p<min || p>max){
 					li.remove();
 					requeue.add(curthread);
@@ -0,0 +1,243 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A reusable synchronization point whose number of parties can change. A
+ * phase ends when every registered party has arrived; the phase number then
+ * advances and all threads waiting for the phase to end are woken in one
+ * pass over the scheduler's queue.
+ *
+ * <p>
+ * Unlike a <tt>Barrier</tt>, a party can <tt>arrive()</tt> without waiting,
+ * parties can <tt>register()</tt> and <tt>arriveAndDeregister()</tt> between
+ * phases, and a thread that is not a party can wait for a phase to end with
+ * <tt>awaitAdvance()</tt>.
+ */
+public class Phaser {
+	/**
+	 * Allocate a new phaser with no registered parties.
+	 */
+	public Phaser() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new phaser.
+	 *
+	 * @param	parties	the number of parties registered at first.
+	 */
+	public Phaser(int parties) {
+		Lib.assertTrue(parties >= 0);
+		this.parties = parties;
+	}
+
+	/**
+	 * Add a party to the current phase.
+	 *
+	 * @return	the current phase number.
+	 */
+	public int register() {
+		boolean intStatus = Interrupts.disable();
+
+		parties++;
+		int current = phase;
+
+		Interrupts.restore(intStatus);
+
+		return current;
+	}
+
+	/**
+	 * Arrive at the phaser without waiting for the others.
+	 *
+	 * @return	the phase number arrived at.
+	 */
+	public int arrive() {
+		return arrive(false);
+	}
+
+	/**
+	 * Arrive at the phaser and deregister, without waiting for the others.
+	 * If this leaves no parties, the phase still advances.
+	 *
+	 * @return	the phase number arrived at.
+	 */
+	public int arriveAndDeregister() {
+		return arrive(true);
+	}
+
+	/**
+	 * Arrive at the phaser and wait for the others to arrive.
+	 *
+	 * @return	the new phase number.
+	 */
+	public int arriveAndAwaitAdvance() {
+		boolean intStatus = Interrupts.disable();
+
+		int next = awaitAdvance(arrive(false));
+
+		Interrupts.restore(intStatus);
+
+		return next;
+	}
+
+	/**
+	 * Wait for phase <i>arrivedPhase</i> to end. Returns at once if the
+	 * phaser is already past it.
+	 *
+	 * @param	arrivedPhase	the phase to wait for, usually the value
+	 *				returned by <tt>arrive()</tt>.
+	 * @return	the new phase number.
+	 */
+	public int awaitAdvance(int arrivedPhase) {
+		boolean intStatus = Interrupts.disable();
+
+		if (arrivedPhase == phase) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+		int current = phase;
+
+		Interrupts.restore(intStatus);
+
+		return current;
+	}
+
+	/** Return the current phase number. */
+	public int getPhase() {
+		return phase;
+	}
+
+	/** Return the number of registered parties. */
+	public int getRegisteredParties() {
+		return parties;
+	}
+
+	/** Return the number of parties that have arrived in the current phase. */
+	public int getArrivedParties() {
+		return arrived;
+	}
+
+	/** Record an arrival, ending the phase if it was the last. */
+	private int arrive(boolean deregister) {
+		boolean intStatus = Interrupts.disable();
+
+		Lib.assertTrue(parties > 0);
+		int current = phase;
+		if (deregister)
+			parties--;
+		else
+			arrived++;
+
+		if (arrived == parties) {
+			arrived = 0;
+			phase++;
+			CountDownLatch.wakeAll(waitQueue);
+		}
+
+		Interrupts.restore(intStatus);
+
+		return current;
+	}
+
+	/**
+	 * Test that stages separated by each primitive run in lock step, and
+	 * compare the simulated time taken against a semaphore per thread. The
+	 * stages are <tt>phaser.stages</tt> (10 by default), run by
+	 * <tt>phaser.threads</tt> threads (8 by default).
+	 */
+	public static void selfTest() {
+		int threads = Config.getInteger("phaser.threads", 8);
+		int stages = Config.getInteger("phaser.stages", 10);
+
+		String[] modes = { "semaphore", "barrier", "phaser" };
+		for (String mode : modes)
+			runBenchmark(mode, threads, stages);
+
+		// a latch with a timeout, and a phaser that loses its parties
+		CountDownLatch latch = new CountDownLatch(1);
+		Lib.assertTrue(!latch.await(1000));
+		latch.countDown();
+		Lib.assertTrue(latch.await(1000) && latch.getCount() == 0);
+		latch.await();
+
+		Phaser phaser = new Phaser(2);
+		Lib.assertTrue(phaser.arrive() == 0 && phaser.getPhase() == 0);
+		Lib.assertTrue(phaser.arriveAndDeregister() == 0 && phaser.getPhase() == 1);
+		Lib.assertTrue(phaser.arriveAndDeregister() == 1);
+		Lib.assertTrue(phaser.getPhase() == 2 && phaser.getRegisteredParties() == 0);
+		Lib.assertTrue(phaser.awaitAdvance(1) == 2);
+	}
+
+	private static void runBenchmark(final String mode, final int threads, final int stages) {
+		final int[] stage = new int[threads];
+		final Semaphore[] arrived = new Semaphore[threads];
+		final Semaphore[] released = new Semaphore[threads];
+		for (int i = 0; i < threads; i++) {
+			arrived[i] = new Semaphore(0);
+			released[i] = new Semaphore(0);
+		}
+
+		// the last thread to arrive checks that everyone finished the stage
+		Runnable check = new Runnable() {
+			public void run() {
+				int s = stage[0];
+				for (int i = 0; i < threads; i++)
+					Lib.assertTrue(stage[i] == s);
+			}
+		};
+		final Barrier barrier = new Barrier(threads, check);
+		final Phaser phaser = new Phaser(threads);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		long start = Machine.timer().getTime();
+
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			new KThread(new Runnable() {
+				public void run() {
+					for (int s = 0; s < stages; s++) {
+						stage[id]++;
+						ThreadedKernel.alarm.waitUntil(50 * (id + 1));
+
+						if (mode.equals("barrier")) {
+							barrier.await();
+						}
+						else if (mode.equals("phaser")) {
+							Lib.assertTrue(phaser.arriveAndAwaitAdvance() == s + 1);
+						}
+						else {
+							arrived[id].V();
+							released[id].P();
+						}
+						for (int i = 0; i < threads; i++)
+							Lib.assertTrue(stage[i] >= s + 1);
+					}
+					done.countDown();
+				}
+			}).setName(mode + " stage " + t).fork();
+		}
+
+		// the semaphore version needs a coordinator to count arrivals
+		if (mode.equals("semaphore")) {
+			for (int s = 0; s < stages; s++) {
+				for (int i = 0; i < threads; i++)
+					arrived[i].P();
+				for (int i = 0; i < threads; i++)
+					released[i].V();
+			}
+		}
+
+		done.await();
+
+		System.out.println("Phaser," + mode + "," + threads + "," + stages + ","
+				+ (Machine.timer().getTime() - start));
+	}
+
+	private int parties;
+	private int arrived = 0;
+	private int phase = 0;
+	private ThreadQueue waitQueue =
+			ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -3,6 +3,8 @@ package nachos.threads;
 import nachos.machine.*;
 
 import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.TreeSet;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -15,17 +17,47 @@ public abstract class PriorityScheduler extends Scheduler {
 	/* * * * * 	Track running statistics for threads. * * * */
 	
 	/** Running total of threads that have finished. */
-	private static int nfinished;
+	private int nfinished;
 	
 	/** Running total wait time of scheduled threads. Updated on KThread.finish(). */
-	private static long totalWaitTime;
+	private long totalWaitTime;
 	
 	/** Running total turnaround time of scheduled threads. Updated on KThread.finish(). */
-	private static long totalTurnTime;
+	private long totalTurnTime;
 	
 	/** Maximum total wait time of any single thread that has finished.
 	 * Updated on KThread.finish(). */
-	private static long maxWaitTime;
+	private long maxWaitTime;
+	
+	/** Running total of completed real-time jobs. */
+	private int rtJobs;
+	
+	/** Running total of real-time jobs that completed after their deadline. */
+	private int rtMisses;
+	
+	/** Largest amount by which a real-time job missed its deadline. */
+	private long rtMaxLateness;
+	
+	/** Running total of real-time jobs that ran past their budget. */
+	private int rtOverruns;
+	
+	/** Sum of budget/period over all admitted real-time threads. */
+	private double rtUtilization;
+	
+	/** Admission control bound on <tt>rtUtilization</tt>. Can be specified in
+	 * config file. */
+	protected double rtUtilizationBound = 0.9;
+	
+	/** Ready-to-run latency in simulated ticks, indexed by priority. */
+	private LatencyHistogram[] readyLatency;
+	
+	/** Turnaround time in simulated ticks, indexed by priority. */
+	private LatencyHistogram[] turnaround;
+	
+	/** Ready-to-run latency and turnaround in wall-clock ns, or <tt>null</tt>
+	 * unless enabled in the config file. */
+	private LatencyHistogram[] readyLatencyNanos;
+	private LatencyHistogram[] turnaroundNanos;
 	
 	/**
 	 * The default priority for a new thread. Do not change this value.
@@ -40,9 +72,17 @@ public abstract class PriorityScheduler extends Scheduler {
 	 */
 	protected int priorityMaximum = 40;    
 	
+	/** Time quantum in ticks, indexed by priority, or <tt>null</tt> to
+	 * preempt on every timer interrupt. Can be specified in config file. */
+	protected long[] quanta = null;
+	
 	/** Reference to the kernel that instantiated the scheduler. */
 	protected ThreadedKernel kernel;
 	
+	/** Simulator replaying a trace through this scheduler, or <tt>null</tt>
+	 * when the scheduler runs real threads. */
+	protected SchedulerSimulator simulator = null;
+	
 	/**
 	 * Allocate, initialize a new priority scheduler.
 	 */
@@ -51,6 +91,11 @@ public abstract class PriorityScheduler extends Scheduler {
 		totalWaitTime = 0;
 		totalTurnTime = 0;
 		maxWaitTime = 0;
+		rtJobs = 0;
+		rtMisses = 0;
+		rtMaxLateness = 0;
+		rtOverruns = 0;
+		rtUtilization = 0;
 	}
 		
 
@@ -62,6 +107,38 @@ public abstract class PriorityScheduler extends Scheduler {
 		agingTime = ageTime;
 	}
 	
+	/** Return the current time: kernel time, or simulated time during a replay. */
+	protected long getTime() {
+		return (simulator != null) ? simulator.getTime() : kernel.getTime();
+	}
+	
+	/** Return the thread holding the CPU, which during a replay is a
+	 * simulated thread. */
+	protected KThread currentThread() {
+		return (simulator != null) ? simulator.currentThread() : KThread.currentThread();
+	}
+	
+	/** Record a dispatch in the binary event log, or as a row of the text log. */
+	private void logScheduledEvent(long time, KThread thread, int priority) {
+		if (simulator != null && !simulator.isVerbose())
+			return;
+		if (kernel.eventLog != null && simulator == null)
+			kernel.eventLog.scheduled(time, thread.getID(), priority);
+		else
+			kernel.logprint(String.format("%d,%d,%d\n", time, thread.getID(), priority));
+	}
+	
+	/** Record a finished thread in the binary event log, or as a row of the text log. */
+	private void logFinishedEvent(KThread thread, long arrival, long run, long wait, long finish) {
+		if (simulator != null && !simulator.isVerbose())
+			return;
+		if (kernel.eventLog != null && simulator == null)
+			kernel.eventLog.finished(thread.getID(), arrival, run, wait, finish);
+		else
+			kernel.logprint(String.format("%d,%d,%d,%d,%d\n", thread.getID(),
+					arrival, run, wait, finish));
+	}
+	
 	/** Write global stats to kernel logfile for threads managed by the scheduler.
 	 * To be called before kernel terminates.
 	 */
@@ -70,6 +147,15 @@ public abstract class PriorityScheduler extends Scheduler {
 		int avTurn = Math.round(((float)totalTurnTime)/nfinished);
 		kernel.logprint(String.format("System,%d,%d,%d,%d\n", nfinished, avWait,
 				maxWaitTime, avTurn));
+		if (rtJobs > 0)
+			kernel.logprint(String.format("RealTime,%d,%d,%d,%d\n", rtJobs, rtMisses,
+					rtMaxLateness, rtOverruns));
+		
+		// Latency,priority,count,p50,p99,p999,max
+		logHistograms("Latency", readyLatency);
+		logHistograms("Turnaround", turnaround);
+		logHistograms("LatencyNs", readyLatencyNanos);
+		logHistograms("TurnaroundNs", turnaroundNanos);
 	}
 	
 	
@@ -121,9 +207,10 @@ public abstract class PriorityScheduler extends Scheduler {
 
 	
 	/**
-	 * Get effective priority of input thread. Because we don't
-	 * accommodate priority donation, this is equal to the plain
-	 * thread priority.
+	 * Get effective priority of input thread. This is the best (numerically
+	 * lowest) of its own priority and the effective priorities of all threads
+	 * waiting on <tt>transferPriority</tt> queues that it owns, directly or
+	 * through a chain of owners.
 	 * 
 	 * @param thread	thread from which to return priority
 	 * 
@@ -136,6 +223,161 @@ public abstract class PriorityScheduler extends Scheduler {
 	}
 	
 	
+	/** Also keep wall-clock histograms in ns, as specified in the config file. */
+	protected void setWallClockLatency(boolean enabled) {
+		if (enabled) {
+			readyLatencyNanos = new LatencyHistogram[0];
+			turnaroundNanos = new LatencyHistogram[0];
+		}
+		else {
+			readyLatencyNanos = null;
+			turnaroundNanos = null;
+		}
+	}
+	
+	/** Return the current simulated time in ticks, or the replay clock during a replay. */
+	protected long getTicks() {
+		return (simulator != null) ? simulator.getTime() : Machine.timer().getTime();
+	}
+	
+	/** Make sure the array holds a histogram for the specified priority,
+	 * growing it as needed, and return the (possibly reallocated) array. */
+	private static LatencyHistogram[] histogramsFor(LatencyHistogram[] histograms, int priority) {
+		if (histograms == null || priority >= histograms.length) {
+			LatencyHistogram[] grown = new LatencyHistogram[priority + 1];
+			if (histograms != null)
+				System.arraycopy(histograms, 0, grown, 0, histograms.length);
+			histograms = grown;
+		}
+		if (histograms[priority] == null)
+			histograms[priority] = new LatencyHistogram();
+		return histograms;
+	}
+	
+	/** Write p50/p99/p999 and max of each non-empty histogram as rows of the log. */
+	private void logHistograms(String name, LatencyHistogram[] histograms) {
+		if (histograms == null) return;
+		
+		for (int p = 0; p < histograms.length; p++) {
+			LatencyHistogram h = histograms[p];
+			if (h == null || h.getCount() == 0) continue;
+			
+			kernel.logprint(String.format("%s,%d,%d,%d,%d,%d,%d\n", name, p,
+					h.getCount(), h.getValueAtPercentile(50),
+					h.getValueAtPercentile(99), h.getValueAtPercentile(99.9),
+					h.getMax()));
+		}
+	}
+	
+	/**
+	 * Set the time quanta as specified in the config file: a comma-separated
+	 * list of <tt>priority:ticks</tt> or <tt>low-high:ticks</tt> entries.
+	 * Priorities that are not listed get a quantum of 0, so their threads are
+	 * preempted on every timer interrupt as before. A <tt>null</tt> spec
+	 * clears all quanta.
+	 */
+	protected void setQuanta(String spec) {
+		if (spec == null) {
+			quanta = null;
+			return;
+		}
+		
+		quanta = new long[priorityMaximum + 1];
+		for (String entry : spec.split(",")) {
+			String[] pair = entry.trim().split(":");
+			Lib.assertTrue(pair.length == 2, "Bad quantum entry " + entry);
+			
+			String[] range = pair[0].trim().split("-");
+			int low = Integer.parseInt(range[0].trim());
+			int high = (range.length > 1) ? Integer.parseInt(range[1].trim()) : low;
+			long ticks = Long.parseLong(pair[1].trim());
+			Lib.assertTrue(low >= priorityMinimum && low <= high && ticks >= 0,
+					"Bad quantum entry " + entry);
+			
+			for (int p = low; p <= Math.min(high, priorityMaximum); p++)
+				quanta[p] = ticks;
+		}
+	}
+	
+	/** Return the quantum, in ticks, given to the thread each time it is
+	 * dispatched: the one configured for its effective priority. */
+	protected long getQuantum(ThreadState state) {
+		if (quanta == null) return 0;
+		
+		int p = Math.min(state.getEffectivePriority(), quanta.length - 1);
+		return quanta[Math.max(p, 0)];
+	}
+	
+	/**
+	 * Charge the running thread for the ticks since it was dispatched or
+	 * since the last timer interrupt, and preempt it only once its quantum
+	 * has run out. The main and idle threads are always preempted.
+	 */
+	@Override
+	public boolean timerInterrupt() {
+		KThread current = currentThread();
+		if (current.isMainThread() || current.isIdleThread()
+				|| current.thdSchedState == null)
+			return true;
+		
+		ThreadState state = getThreadState(current);
+		long now = getTicks();
+		state.quantumLeft -= now - state.quantumCharged;
+		state.quantumCharged = now;
+		return state.quantumLeft <= 0;
+	}
+	
+	/** Set admission control bound for real-time threads as specified in the config file. */
+	protected void setRealTimeBound(double bound) {
+		this.rtUtilizationBound = bound;
+	}
+	
+	/**
+	 * Place the specified thread in the earliest-deadline-first real-time
+	 * class. Every time the thread becomes ready after blocking it releases a
+	 * job that must complete (block or finish) within <i>period</i> ms and
+	 * may use at most <i>budget</i> ms of CPU. Real-time threads are always
+	 * chosen ahead of normal threads, in deadline order. A thread whose job
+	 * overruns its budget competes as a normal thread until its next job.
+	 *
+	 * @param thread	thread to make real-time
+	 * @param period	relative deadline of each job, in ms
+	 * @param budget	CPU time allowed per job, in ms
+	 * 
+	 * @return <tt>false</tt> if admitting the thread would raise total
+	 * 		real-time utilization above the configured bound.
+	 */
+	public boolean setDeadline(KThread thread, long period, long budget) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(period > 0 && budget > 0 && budget <= period);
+		
+		ThreadState state = getThreadState(thread);
+		double utilization = rtUtilization - state.getUtilization()
+				+ ((double) budget)/period;
+		if (utilization > rtUtilizationBound)
+			return false;
+		
+		rtUtilization = utilization;
+		state.rtPeriod = period;
+		state.rtBudget = budget;
+		return true;
+	}
+	
+	/** Return the specified thread to the normal priority class. A thread
+	 * waiting by deadline is moved to the normal queue it is waiting on. */
+	public void clearDeadline(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		
+		ThreadState state = getThreadState(thread);
+		rtUtilization -= state.getUtilization();
+		state.rtPeriod = 0;
+		state.rtBudget = 0;
+		
+		if (state.waitingOn != null)
+			state.waitingOn.requeueByPriority(state);
+	}
+	
+	
 	/** Set globally allowed maximum priority as specified in the config file. */
 	protected void setSchedMaxPriority(int maxp) {
 		this.priorityMaximum = maxp;
@@ -173,7 +415,7 @@ public abstract class PriorityScheduler extends Scheduler {
 	/** Raise the priority of current thread by one */
 
 	public boolean increasePriority() {
-		boolean intStatus = Machine.interrupt().disable();
+		boolean intStatus = Interrupts.disable();
 
 		KThread thread = KThread.currentThread();
 
@@ -183,13 +425,13 @@ public abstract class PriorityScheduler extends Scheduler {
 
 		setPriority(thread, priority+1);
 
-		Machine.interrupt().restore(intStatus);
+		Interrupts.restore(intStatus);
 		return true;
 	}
 
 	/** Decrease the priority of current thread by one */
 	public boolean decreasePriority() {
-		boolean intStatus = Machine.interrupt().disable();
+		boolean intStatus = Interrupts.disable();
 
 		KThread thread = KThread.currentThread();
 
@@ -199,7 +441,7 @@ public abstract class PriorityScheduler extends Scheduler {
 
 		setPriority(thread, priority-1);
 
-		Machine.interrupt().restore(intStatus);
+		Interrupts.restore(intStatus);
 		return true;
 	}
 
@@ -210,37 +452,233 @@ public abstract class PriorityScheduler extends Scheduler {
 	 */
 	protected abstract class PriorityThreadQueue extends ThreadQueue {
 		
+		/** Real-time threads with an active job, ordered by absolute deadline. */
+		private TreeSet<ThreadState> deadlineQueue;
+		
+		/** Arrival counter used to keep equal keys in first-come first-served order. */
+		private long nextSeq = 0;
+		
 		public PriorityThreadQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+		
+		/** Orders real-time threads by deadline, then by thread ID. */
+		private class DeadlineComparator implements Comparator<ThreadState> {
+
+			@Override
+			public int compare(ThreadState s1, ThreadState s2) {
+				if (s1.rtDeadline != s2.rtDeadline)
+					return s1.rtDeadline < s2.rtDeadline ? -1 : 1;
+				return s1.thread.compareTo(s2.thread);
+			}
+			
 		}
 		
-		/** Comparator used to order threads in priority queue based on priority. */
-		protected class ThreadComparator implements Comparator<KThread> {
+		/** Orders waiting threads by effective priority, then by arrival, so that
+		 * threads of equal priority are served first-come first-served. Reads the
+		 * cached state directly rather than going back through the scheduler. */
+		protected class PriorityComparator implements Comparator<ThreadState> {
 
 			@Override
-			public int compare(KThread t1, KThread t2) {
-				int p1 = (ThreadedKernel.scheduler.getPriority(t1));
-				int p2 = (ThreadedKernel.scheduler.getPriority(t2));
-				int comp = p1-p2;
+			public int compare(ThreadState s1, ThreadState s2) {
+				int p1 = s1.getEffectivePriority();
+				int p2 = s2.getEffectivePriority();
 				
-				if (comp < 0) return -1;
+				if (p1 != p2) return p1 < p2 ? -1 : 1;
 				
-				if (comp > 0) return 1;
+				if (s1.enqueueSeq != s2.enqueueSeq)
+					return s1.enqueueSeq < s2.enqueueSeq ? -1 : 1;
 				
 				return 0;
-				
 			}
 			
 		}
 		
-		/** Add specified thread to waiting queue. */
-		public abstract void waitForAccess(KThread thread);
+		/** Add specified thread to waiting queue. Real-time threads within
+		 * their budget go to the deadline queue, all others to the
+		 * scheduler-specific queue. */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn == null,
+					"Thread is already waiting in a queue.");
+			state.waitingOn = this;
+			state.enqueueSeq = nextSeq++;
+			
+			if (transferPriority) {
+				addDonor(state.effectivePriority);
+				if (owner != null) owner.updateEffectivePriority();
+			}
+			
+			if (state.isRealTime() && state.releaseJob()) {
+				if (deadlineQueue == null)
+					deadlineQueue = new TreeSet<ThreadState>(new DeadlineComparator());
+				deadlineQueue.add(state);
+			}
+			else {
+				enqueue(thread);
+			}
+		}
 
-		/** Acquire CPU. */
-		public abstract void acquire(KThread thread);
+		/**
+		 * Record that the specified thread has received access without
+		 * waiting. Subclasses check their own queue is empty and then call
+		 * this method.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			
+			if (transferPriority)
+				setOwner(getThreadState(thread));
+		}
 
-		/** Return next scheduled thread. Return the main thread if there are no test threads remaining so 
-		 * that the kernel exits. */
-		public abstract KThread nextThread();
+		/** Return next scheduled thread. Waiting real-time threads are returned
+		 * earliest deadline first, ahead of all normal threads. */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			
+			KThread thread;
+			if (deadlineQueue != null && !deadlineQueue.isEmpty())
+				thread = deadlineQueue.pollFirst().thread;
+			else
+				thread = dequeue();
+			
+			if (thread != null) {
+				ThreadState state = getThreadState(thread);
+				state.waitingOn = null;
+				if (transferPriority) {
+					removeDonor(state.effectivePriority);
+					setOwner(state);
+				}
+			}
+			else if (transferPriority) {
+				setOwner(null);
+			}
+			return thread;
+		}
+		
+		/**
+		 * Remove a waiting thread from the deadline queue or the
+		 * scheduler-specific queue, and stop counting its donation.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+			
+			if (deadlineQueue == null || !deadlineQueue.remove(state))
+				removeWaiter(thread);
+			state.waitingOn = null;
+			
+			if (transferPriority) {
+				removeDonor(state.effectivePriority);
+				if (owner != null) owner.updateEffectivePriority();
+			}
+			return true;
+		}
+		
+		/**
+		 * Move a waiting thread that has left the real-time class from the
+		 * deadline queue to the scheduler-specific queue.
+		 */
+		protected void requeueByPriority(ThreadState state) {
+			if (deadlineQueue != null && deadlineQueue.remove(state))
+				enqueue(state.thread);
+		}
+		
+		/**
+		 * Transfer ownership of this queue. The old owner stops receiving
+		 * donations from its waiters and the new owner starts; only these two
+		 * threads, and the owners they are waiting on, are recomputed.
+		 */
+		protected void setOwner(ThreadState state) {
+			ThreadState oldOwner = owner;
+			owner = state;
+			
+			if (oldOwner == state) return;
+			
+			if (oldOwner != null) {
+				oldOwner.ownedQueues.remove(this);
+				oldOwner.updateEffectivePriority();
+			}
+			if (state != null) {
+				if (state.ownedQueues == null)
+					state.ownedQueues = new LinkedList<PriorityThreadQueue>();
+				state.ownedQueues.add(this);
+				state.updateEffectivePriority();
+			}
+		}
+		
+		/** Return the best effective priority among waiting threads, or
+		 * <tt>Integer.MAX_VALUE</tt> if no thread is waiting. */
+		protected int getDonatedPriority() {
+			return bestDonor;
+		}
+		
+		/** Count a waiter of the specified effective priority. */
+		private void addDonor(int priority) {
+			if (donorCounts == null || priority >= donorCounts.length) {
+				int[] counts = new int[Math.max(priorityMaximum, priority) + 1];
+				if (donorCounts != null)
+					System.arraycopy(donorCounts, 0, counts, 0, donorCounts.length);
+				donorCounts = counts;
+			}
+			donorCounts[priority]++;
+			if (priority < bestDonor) bestDonor = priority;
+		}
+		
+		/** Stop counting a waiter of the specified effective priority. Only
+		 * rescans the (constant number of) priority levels when the best one
+		 * empties. */
+		private void removeDonor(int priority) {
+			Lib.assertTrue(donorCounts[priority] > 0);
+			donorCounts[priority]--;
+			
+			if (priority == bestDonor && donorCounts[priority] == 0) {
+				bestDonor = Integer.MAX_VALUE;
+				for (int p = priority + 1; p < donorCounts.length; p++) {
+					if (donorCounts[p] > 0) {
+						bestDonor = p;
+						break;
+					}
+				}
+			}
+		}
+		
+		/** Called when the effective priority of a waiting thread changes. */
+		protected void donorChanged(ThreadState state, int oldPriority) {
+			if (!transferPriority) return;
+			
+			removeDonor(oldPriority);
+			addDonor(state.effectivePriority);
+			if (owner != null) owner.updateEffectivePriority();
+		}
+		
+		/**
+		 * Called when the effective priority of a thread waiting in this queue
+		 * changes, so that the queue can reposition it. Default behavior does
+		 * nothing.
+		 */
+		protected void priorityChanged(ThreadState state) {
+		}
+		
+		/** Add specified thread to the scheduler-specific waiting queue. */
+		protected abstract void enqueue(KThread thread);
+		
+		/** Return next thread from the scheduler-specific waiting queue. Return the
+		 * main thread if there are no test threads remaining so that the kernel exits. */
+		protected abstract KThread dequeue();
+		
+		/** Remove the specified thread, which is waiting, from the
+		 * scheduler-specific waiting queue. */
+		protected abstract void removeWaiter(KThread thread);
 		
 
 		public void print() {
@@ -253,6 +691,15 @@ public abstract class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+		
+		/** Thread that currently has access, if this queue transfers priority. */
+		protected ThreadState owner = null;
+		
+		/** Number of waiting threads at each effective priority. */
+		private int[] donorCounts = null;
+		
+		/** Best effective priority among waiting threads. */
+		private int bestDonor = Integer.MAX_VALUE;
 	}
 
 	/**
@@ -274,13 +721,57 @@ public abstract class PriorityScheduler extends Scheduler {
 		protected long thdTotWait;
 		protected long thdTotRun;
 		
+		/** Arrival and last enqueue time in simulated ticks and wall-clock ns,
+		 * for the latency histograms. */
+		protected long arrivalTicks = -1;
+		protected long enqueuedTicks = -1;
+		protected long arrivalNanos;
+		protected long enqueuedNanos;
+		
+		/** Ticks left in the current quantum, and the time up to which they
+		 * have been charged. */
+		protected long quantumLeft;
+		protected long quantumCharged;
+		
 		protected KThread thread;
 		protected int priority;
 		
+		/** Queue the thread is currently waiting in, if any. */
+		protected PriorityThreadQueue waitingOn;
+		
+		/** Position of this state in the <tt>ThreadHeap</tt> of <tt>waitingOn</tt>,
+		 * or -1 if it is not in a heap. */
+		protected int heapIndex;
+		
+		/** Arrival order within <tt>waitingOn</tt>, used to break ties. */
+		protected long enqueueSeq;
+		
+		/** Cached effective priority, kept up to date by <tt>updateEffectivePriority()</tt>. */
+		protected int effectivePriority;
+		
+		/** Priority-transferring queues this thread currently owns, or <tt>null</tt>. */
+		protected LinkedList<PriorityThreadQueue> ownedQueues;
+		
+		/**
+		 * Real-time parameters. A period of 0 means the thread is in the normal
+		 * priority class.
+		 */
+		protected long rtPeriod;
+		protected long rtBudget;
+		protected long rtDeadline;
+		protected long rtUsed;
+		protected boolean rtJobActive;
+		protected boolean rtOverrun;
+		
 		
 		public ThreadState(KThread thread) {
 			this.thread = thread;
+			this.waitingOn = null;
+			this.heapIndex = -1;
 			setPriority(priorityDefault);
+			rtPeriod = 0;
+			rtBudget = 0;
+			rtJobActive = false;
 			arrivalTime = -1;
 			thdTotWait = 0;
 			thdTotRun = 0;
@@ -292,13 +783,84 @@ public abstract class PriorityScheduler extends Scheduler {
 		 * Updates statistics and prints to kernel logfile. To be in KThread when the thread is scheduled to run.
 		 */
 		protected void logScheduled() {
-			long curtime = kernel.getTime();
+			long curtime = getTime();
 			
 			lastScheduled = curtime;
 			
+			quantumLeft = getQuantum(this);
+			quantumCharged = getTicks();
+			
 			if (lastEnqueued > 0) thdTotWait += curtime - lastEnqueued;
 			
-			kernel.logprint(String.format("%d,%d,%d\n", curtime, thread.getID(), priority));
+			if (enqueuedTicks >= 0) {
+				readyLatency = histogramsFor(readyLatency, priority);
+				readyLatency[priority].record(getTicks() - enqueuedTicks);
+				if (readyLatencyNanos != null) {
+					readyLatencyNanos = histogramsFor(readyLatencyNanos, priority);
+					readyLatencyNanos[priority].record(System.nanoTime() - enqueuedNanos);
+				}
+				enqueuedTicks = -1;
+			}
+			
+			logScheduledEvent(curtime, thread, priority);
+		}
+		
+		/** Return <tt>true</tt> if the thread is in the real-time class. */
+		public boolean isRealTime() {
+			return rtPeriod > 0;
+		}
+		
+		/** Return the fraction of the CPU reserved by this thread. */
+		protected double getUtilization() {
+			return isRealTime() ? ((double) rtBudget)/rtPeriod : 0;
+		}
+		
+		/**
+		 * Called as a real-time thread becomes ready. Charges a preempted
+		 * thread for the time it ran, or releases a new job for a thread that
+		 * was blocked or is new.
+		 * 
+		 * @return <tt>true</tt> if the job still has budget left and should
+		 * 		be queued by deadline.
+		 */
+		protected boolean releaseJob() {
+			long curtime = getTime();
+			
+			if (rtJobActive && thread == currentThread()) {
+				rtUsed += curtime - lastScheduled;
+			}
+			else if (!rtJobActive) {
+				rtJobActive = true;
+				rtOverrun = false;
+				rtDeadline = curtime + rtPeriod;
+				rtUsed = 0;
+			}
+			
+			if (rtUsed > rtBudget) {
+				if (!rtOverrun) rtOverruns++;
+				rtOverrun = true;
+				return false;
+			}
+			return true;
+		}
+		
+		/** Complete the current real-time job, if any, and record whether it
+		 * met its deadline. */
+		protected void completeJob() {
+			if (!rtJobActive) return;
+			rtJobActive = false;
+			
+			long lateness = getTime() - rtDeadline;
+			rtJobs++;
+			if (lateness > 0) {
+				rtMisses++;
+				if (lateness > rtMaxLateness) rtMaxLateness = lateness;
+			}
+		}
+		
+		/** Update statistics when the thread blocks. To be called from KThread.sleep(). */
+		protected void logBlocked() {
+			completeJob();
 		}
 		
 		/** Age the thread associated with this state upward by some scheduler-dependent method. Default behavior does nothing. */
@@ -312,7 +874,7 @@ public abstract class PriorityScheduler extends Scheduler {
 		
 		/**	Update waiting statistics when the thread is placed in the queue. 	 */
 		protected void logEnqueued() {
-			long curtime = kernel.getTime();
+			long curtime = getTime();
 			
 			if (lastEnqueued < 0) {
 				// Thread has not been scheduled for the first time yet.
@@ -323,14 +885,31 @@ public abstract class PriorityScheduler extends Scheduler {
 				thdTotRun += curtime - lastScheduled;
 			}
 			lastEnqueued = curtime;
+			
+			enqueuedTicks = getTicks();
+			if (readyLatencyNanos != null) enqueuedNanos = System.nanoTime();
+			if (arrivalTicks < 0) {
+				arrivalTicks = enqueuedTicks;
+				arrivalNanos = enqueuedNanos;
+			}
 		}
 		
 		/** Update global statistics from thread and write thread stats to logfile.
 		 *  To be called when thread finishes. 
 		 */
 		protected void logFinished() {
-			long curtime = kernel.getTime();
+			long curtime = getTime();
 			nfinished++;
+			completeJob();
+			
+			if (arrivalTicks >= 0) {
+				turnaround = histogramsFor(turnaround, priority);
+				turnaround[priority].record(getTicks() - arrivalTicks);
+				if (turnaroundNanos != null) {
+					turnaroundNanos = histogramsFor(turnaroundNanos, priority);
+					turnaroundNanos[priority].record(System.nanoTime() - arrivalNanos);
+				}
+			}
 			
 			//Lib.assertTrue(arrivalTime>=0,"Trying to log finish of thread with no arrival time.");
 			
@@ -341,8 +920,8 @@ public abstract class PriorityScheduler extends Scheduler {
 			if (thdTotWait>0) totalWaitTime += thdTotWait;
 			if (thdTotWait>maxWaitTime)  maxWaitTime = thdTotWait;
 			
-			kernel.logprint(String.format("%d,%d,%d,%d,%d\n", thread.getID(),
-					arrivalTime, thdTotRun+curtime-lastScheduled, thdTotWait, curtime));
+			logFinishedEvent(thread, arrivalTime, thdTotRun+curtime-lastScheduled,
+					thdTotWait, curtime);
 			
 		}
 
@@ -350,12 +929,34 @@ public abstract class PriorityScheduler extends Scheduler {
 		public int getPriority() {
 			return this.priority;
 		}
-		/** Return effective priority of thread based on priority donation. Our implementation does nothing
-		 * as the assignment ignores this feature.
-		 */
+		/** Return effective priority of thread based on priority donation. */
 		public int getEffectivePriority() {
-			// We aren't worrying about donating priority, so this is the same as vanilla priority.
-			return this.getPriority();
+			return this.effectivePriority;
+		}
+		
+		/**
+		 * Recompute the cached effective priority from the thread's own
+		 * priority and the best waiter of each queue it owns. If it changed,
+		 * reposition the thread in the queue it waits on and propagate the
+		 * change to that queue's owner, so that only the affected chain is
+		 * visited.
+		 */
+		protected void updateEffectivePriority() {
+			int effective = this.priority;
+			if (ownedQueues != null) {
+				for (PriorityThreadQueue queue : ownedQueues)
+					effective = Math.min(effective, queue.getDonatedPriority());
+			}
+			
+			if (effective == this.effectivePriority) return;
+			
+			int oldPriority = this.effectivePriority;
+			this.effectivePriority = effective;
+			
+			if (waitingOn != null) {
+				waitingOn.priorityChanged(this);
+				waitingOn.donorChanged(this, oldPriority);
+			}
 		}
 		
 		/**
@@ -369,6 +970,8 @@ public abstract class PriorityScheduler extends Scheduler {
 			 * of allowed bounds because this is checked in the 
 			 * enclosing method. */
 			this.priority = priority;
+			
+			updateEffectivePriority();
 		}
 		
 	}
@@ -0,0 +1,241 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A lock that lets any number of readers, or a single writer, hold it at
+ * once. Meant for kernel data that is read far more often than written.
+ * Waiting readers and writers sleep in thread queues from the scheduler, so
+ * the order among waiting readers, and among waiting writers, is whatever the
+ * scheduler's queues give; a lock is handed directly to the threads it wakes.
+ *
+ * <p>
+ * Three policies decide between readers and writers:
+ *
+ * <ul>
+ * <li><i>reader preference</i>: a reader gets in whenever no writer holds
+ * the lock. Writers can starve.
+ * <li><i>writer preference</i> (the default): a reader waits while any
+ * writer is waiting, and a releasing writer hands the lock to the next
+ * writer. Readers can starve.
+ * <li><i>fair</i>: a reader waits while any writer is waiting, but a
+ * releasing writer admits all readers that were waiting before the next
+ * writer, so reader and writer phases alternate and neither starves.
+ * </ul>
+ *
+ * <p>
+ * Waiting readers do not donate priority, since a read lock has no single
+ * owner to donate to.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new reader-writer lock with writer preference.
+	 */
+	public ReadWriteLock() {
+		this(true, false);
+	}
+
+	/**
+	 * Allocate a new reader-writer lock.
+	 *
+	 * @param	writerPreference	<tt>true</tt> for writer preference,
+	 *					<tt>false</tt> for reader preference.
+	 * @param	fair	<tt>true</tt> to alternate reader and writer phases;
+	 *			overrides <i>writerPreference</i>.
+	 */
+	public ReadWriteLock(boolean writerPreference, boolean fair) {
+		this.writerPreference = writerPreference || fair;
+		this.fair = fair;
+	}
+
+	/**
+	 * Acquire the lock for reading, waiting while a writer holds it or, unless
+	 * the lock prefers readers, while a writer is waiting.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Interrupts.disable();
+
+		if (writer != null || (writerPreference && waitingWriters > 0)) {
+			waitingReaders++;
+			readQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+		else {
+			readers++;
+		}
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Release a read hold on the lock. The last reader out hands the lock to
+	 * a waiting writer.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Interrupts.disable();
+
+		Lib.assertTrue(readers > 0 && writer == null);
+		readers--;
+		if (readers == 0 && waitingWriters > 0)
+			admitWriter();
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Acquire the lock for writing, waiting until no reader or writer holds
+	 * it.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Interrupts.disable();
+
+		KThread thread = KThread.currentThread();
+		if (writer != null || readers > 0) {
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+		else {
+			writer = thread;
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Release the write hold on the lock, handing it to the next writer or to
+	 * all waiting readers as the policy says.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Interrupts.disable();
+
+		writer = null;
+		boolean readersFirst = fair || !writerPreference;
+		if (waitingReaders > 0 && (readersFirst || waitingWriters == 0))
+			admitReaders();
+		else if (waitingWriters > 0)
+			admitWriter();
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return	true if the current thread is the writer.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return writer == KThread.currentThread();
+	}
+
+	/** Return the number of threads holding the lock for reading. */
+	public int getReadHoldCount() {
+		return readers;
+	}
+
+	/** Give the lock to all waiting readers. */
+	private void admitReaders() {
+		KThread thread;
+		while ((thread = readQueue.nextThread()) != null) {
+			waitingReaders--;
+			readers++;
+			thread.ready();
+		}
+		Lib.assertTrue(waitingReaders == 0);
+	}
+
+	/** Give the lock to the next waiting writer. */
+	private void admitWriter() {
+		writer = writeQueue.nextThread();
+		Lib.assertTrue(writer != null);
+		waitingWriters--;
+		writer.ready();
+	}
+
+	/**
+	 * Compare a plain <tt>Lock</tt> with each reader-writer policy as the
+	 * number of readers grows. Each reader runs <tt>rwlock.sections</tt>
+	 * read sections (20 by default) that each block in the alarm, as a read
+	 * that waits for a device would, and a writer updates the data between
+	 * them. Reports the simulated ticks taken and the most readers inside at
+	 * once. There is only one processor, so readers overlap only while
+	 * blocked; the gain shows up as shorter simulated time.
+	 */
+	public static void selfTest() {
+		int sections = Config.getInteger("rwlock.sections", 20);
+		String[] modes = { "lock", "readerPreference", "writerPreference", "fair" };
+
+		for (String mode : modes) {
+			for (int readers = 1; readers <= 8; readers *= 2)
+				runBenchmark(mode, readers, sections);
+		}
+	}
+
+	private static void runBenchmark(String mode, int readerCount, final int sections) {
+		final Lock lock = mode.equals("lock") ? new Lock() : null;
+		final ReadWriteLock rwlock = (lock != null) ? null
+				: new ReadWriteLock(mode.equals("writerPreference"), mode.equals("fair"));
+		final int[] inside = new int[2];	// current and most readers inside
+		final int[] data = new int[1];
+		final CountDownLatch done = new CountDownLatch(readerCount + 1);
+
+		long start = Machine.timer().getTime();
+
+		for (int r = 0; r < readerCount; r++) {
+			new KThread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < sections; i++) {
+						if (lock != null) lock.acquire(); else rwlock.acquireRead();
+						inside[0]++;
+						inside[1] = Math.max(inside[1], inside[0]);
+						int seen = data[0];
+						ThreadedKernel.alarm.waitUntil(100);
+						Lib.assertTrue(data[0] == seen);
+						inside[0]--;
+						if (lock != null) lock.release(); else rwlock.releaseRead();
+					}
+					done.countDown();
+				}
+			}).setName("reader " + r).fork();
+		}
+
+		new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < sections / 4; i++) {
+					if (lock != null) lock.acquire(); else rwlock.acquireWrite();
+					Lib.assertTrue(inside[0] == 0);
+					data[0]++;
+					if (lock != null) lock.release(); else rwlock.releaseWrite();
+					ThreadedKernel.alarm.waitUntil(400);
+				}
+				done.countDown();
+			}
+		}).setName("writer").fork();
+
+		done.await();
+
+		System.out.println("ReadWriteLock," + mode + "," + readerCount + ","
+				+ (Machine.timer().getTime() - start) + "," + inside[1]);
+	}
+
+	private boolean writerPreference;
+	private boolean fair;
+
+	private int readers = 0;
+	private KThread writer = null;
+	private int waitingReaders = 0;
+	private int waitingWriters = 0;
+
+	private ThreadQueue readQueue =
+			ThreadedKernel.scheduler.newThreadQueue(false);
+	private ThreadQueue writeQueue =
+			ThreadedKernel.scheduler.newThreadQueue(false);
+}
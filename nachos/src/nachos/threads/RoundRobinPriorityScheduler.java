@@ -0,0 +1,98 @@
+package nachos.threads;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A round-robin scheduler that ignores priorities and serves threads from a
+ * single first-come first-served queue. Unlike <tt>RoundRobinScheduler</tt>
+ * it extends <tt>PriorityScheduler</tt>, so it can be selected in the config
+ * file and records the same statistics as the priority schedulers, which
+ * makes it the baseline when comparing them.
+ */
+public class RoundRobinPriorityScheduler extends PriorityScheduler {
+
+	/**
+	 * Allocate a new round-robin scheduler.
+	 */
+	public RoundRobinPriorityScheduler() {
+		super();
+	}
+
+	/**
+	 * @see nachos.threads.PriorityScheduler#newThreadQueue(boolean)
+	 */
+	@Override
+	public PriorityThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FifoThreadQueue(transferPriority);
+	}
+
+
+	protected class FifoThreadQueue extends PriorityScheduler.PriorityThreadQueue {
+
+		/** Waiting threads in arrival order; a hash set so that a waiter
+		 * can be removed in constant time. */
+		private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
+
+		KThread main;
+
+		public FifoThreadQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		protected void enqueue(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+
+			if (thread.isMainThread()) {
+				this.main = thread;
+				return;
+			}
+
+			waitQueue.add(thread);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			Lib.assertTrue(waitQueue.isEmpty(),
+					"Attempted to aquire with non-empty wait queue.");
+			super.acquire(thread);
+		}
+
+		@Override
+		protected KThread dequeue() {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+
+			if (waitQueue.isEmpty()) {
+				KThread m = main;
+				main = null;
+				return m;
+			}
+
+			Iterator<KThread> i = waitQueue.iterator();
+			KThread thread = i.next();
+			i.remove();
+			return thread;
+		}
+
+		/** Remove a waiting thread, in constant time. */
+		protected void removeWaiter(KThread thread) {
+			if (thread == main)
+				main = null;
+			else
+				waitQueue.remove(thread);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (KThread thread : waitQueue)
+				System.out.print(thread + " ");
+		}
+	}
+}
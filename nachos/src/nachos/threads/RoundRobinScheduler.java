@@ -2,15 +2,16 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
- * with linked lists. When a thread begins waiting for access, it is appended
- * to the end of a list. The next thread to receive access is always the first
- * thread in the list. This causes access to be given on a first-come
- * first-serve basis.
+ * with linked hash sets. When a thread begins waiting for access, it is
+ * appended to the end of a set. The next thread to receive access is always
+ * the first thread in the set. This causes access to be given on a
+ * first-come first-serve basis, and lets a waiting thread be removed in
+ * constant time.
  */
 public class RoundRobinScheduler extends Scheduler {
     /**
@@ -55,7 +56,10 @@ public class RoundRobinScheduler extends Scheduler {
 	    if (waitQueue.isEmpty())
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    Iterator<KThread> i = waitQueue.iterator();
+	    KThread thread = i.next();
+	    i.remove();
+	    return thread;
 	}
 
 	/**
@@ -69,6 +73,15 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * Remove a waiting thread from the queue, in constant time.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
@@ -82,6 +95,6 @@ public class RoundRobinScheduler extends Scheduler {
 		
 	}
 
-	private LinkedList waitQueue = new LinkedList();
+	private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
     }
 }
@@ -131,6 +131,78 @@ public abstract class Scheduler {
 	setPriority(KThread.currentThread(), priority);
     }
 
+    /**
+     * Give the specified thread a soft real-time deadline. Must be called with
+     * interrupts disabled. Each time the thread becomes ready after blocking,
+     * it should complete its work (block again or finish) within
+     * <i>period</i>, using at most <i>budget</i> of CPU time.
+     *
+     * @param	thread	the thread to make real-time.
+     * @param	period	the relative deadline of each job.
+     * @param	budget	the CPU time allowed per job.
+     * @return	<tt>true</tt> if the scheduler admitted the thread to its
+     *		real-time class.
+     */
+    public boolean setDeadline(KThread thread, long period, long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Allocate the queue that holds threads ready to run. There is only one,
+     * created by the first <tt>KThread</tt>. By default this is an ordinary
+     * thread queue that does not transfer priority.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled,
+     * before the current thread is preempted. Schedulers that do periodic
+     * accounting or give threads time quanta longer than one timer interval
+     * override this. By default the current thread is always preempted.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	return true;
+    }
+
+    /**
+     * Create a scheduling group. Groups form a tree; the threads of a group
+     * and its descendants share CPU time with sibling groups in proportion
+     * to the group weights. Must be called with interrupts disabled.
+     *
+     * @param	parent	the parent group, or <tt>null</tt> for a top-level
+     *			group.
+     * @param	name	a name used in the scheduler log.
+     * @param	weight	the relative share of the group among its siblings.
+     * @return	the new group, or <tt>null</tt> if the scheduler does not
+     *		support groups.
+     */
+    public SchedulingGroup createGroup(SchedulingGroup parent, String name,
+				       int weight) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return null;
+    }
+
+    /**
+     * Move a thread into a scheduling group, which must not have child
+     * groups. The thread may be ready, running or blocked. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the thread to move.
+     * @param	group	the group it joins.
+     * @return	<tt>true</tt> if the scheduler supports groups.
+     */
+    public boolean setGroup(KThread thread, SchedulingGroup group) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
     /**
      * If possible, raise the priority of the current thread in some
      * scheduler-dependent way.
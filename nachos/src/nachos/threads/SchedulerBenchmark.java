@@ -0,0 +1,260 @@
+package nachos.threads;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs every workload against every scheduler and collects the results in a
+ * single CSV report. Each run is a separate Nachos process, since a JVM can
+ * only boot one kernel, started with its own config file derived from a base
+ * config and with a fixed random seed, so reports can be compared between
+ * releases to spot regressions.
+ *
+ * <p>
+ * The workloads are self tests 1 through 6 and three parameterized runs of
+ * self test 10: CPU-bound threads, a mix of yielders and non-yielders, and
+ * yielders spread over the whole priority range. For each run the report
+ * gives throughput (finished threads per second), average and maximum wait,
+ * average turnaround and the number of context switches (dispatches).
+ *
+ * <p><blockquote><pre>
+ * java nachos.threads.SchedulerBenchmark [-c base.conf] [-o report.csv]
+ *     [-s seed,...] [-t threads] [-n work]
+ * </pre></blockquote>
+ *
+ * <p>
+ * The base config must not set keys that the harness overrides:
+ * <tt>ThreadedKernel.scheduler</tt>, <tt>ThreadedKernel.whichTest</tt>,
+ * <tt>statistics.*</tt> and <tt>benchmark.*</tt>.
+ */
+public class SchedulerBenchmark {
+	/** Schedulers compared, in report order. */
+	private static final String[] schedulers = {
+		"nachos.threads.RoundRobinPriorityScheduler",
+		"nachos.threads.StaticPriorityScheduler",
+		"nachos.threads.DynamicPriorityScheduler",
+		"nachos.threads.DecayUsageScheduler",
+		"nachos.threads.MultiLevelScheduler",
+		"nachos.threads.StrideScheduler",
+		"nachos.threads.CompletelyFairScheduler",
+		"nachos.threads.FairShareScheduler",
+	};
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String baseConf = "nachos.conf";
+		String report = "benchmark.csv";
+		String seeds = "0";
+		int threads = 20;
+		int work = 10000000;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i + 1 == args.length) {
+				usage();
+			}
+			else if (arg.equals("-c")) {
+				baseConf = args[++i];
+			}
+			else if (arg.equals("-o")) {
+				report = args[++i];
+			}
+			else if (arg.equals("-s")) {
+				seeds = args[++i];
+			}
+			else if (arg.equals("-t")) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (arg.equals("-n")) {
+				work = Integer.parseInt(args[++i]);
+			}
+			else {
+				usage();
+			}
+		}
+
+		List<String> base = readBaseConfig(baseConf);
+		Map<String, String[]> workloads = workloads(threads, work);
+
+		PrintWriter out = new PrintWriter(new FileWriter(report));
+		out.println("scheduler,workload,seed,finished,throughput,avgWait,maxWait,"
+				+ "avgTurnaround,contextSwitches");
+
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		File conf = new File(dir, "nachos-benchmark.conf");
+		File log = new File(dir, "nachos-benchmark.log");
+
+		for (String scheduler : schedulers) {
+			for (Map.Entry<String, String[]> workload : workloads.entrySet()) {
+				for (String seed : seeds.split(",")) {
+					writeConfig(conf, base, scheduler, log, workload.getValue());
+					runNachos(conf, seed.trim());
+					String row = summarize(log);
+
+					String name = scheduler.substring(scheduler.lastIndexOf('.') + 1);
+					out.println(name + "," + workload.getKey() + "," + seed.trim() + "," + row);
+					out.flush();
+					System.out.println(name + " " + workload.getKey() + " " + seed.trim() + ": " + row);
+				}
+			}
+		}
+
+		out.close();
+		conf.delete();
+		log.delete();
+	}
+
+	private static void usage() {
+		System.err.println("usage: java nachos.threads.SchedulerBenchmark [-c base.conf] "
+				+ "[-o report.csv] [-s seed,...] [-t threads] [-n work]");
+		System.exit(1);
+	}
+
+	/** Return the workloads, each a list of config overrides. */
+	private static Map<String, String[]> workloads(int threads, int work) {
+		Map<String, String[]> workloads = new LinkedHashMap<String, String[]>();
+
+		for (int test = 1; test <= 6; test++)
+			workloads.put("st" + test, new String[] { "ThreadedKernel.whichTest", "" + test });
+
+		workloads.put("cpubound", new String[] {
+			"ThreadedKernel.whichTest", "10",
+			"benchmark.threads", "" + threads,
+			"benchmark.work", "" + work,
+		});
+		workloads.put("mixed", new String[] {
+			"ThreadedKernel.whichTest", "10",
+			"benchmark.threads", "" + threads,
+			"benchmark.yielders", "" + threads/2,
+			"benchmark.work", "" + work,
+			"benchmark.yieldInterval", "" + Math.max(work/10, 1),
+		});
+		workloads.put("spread", new String[] {
+			"ThreadedKernel.whichTest", "10",
+			"benchmark.threads", "" + threads,
+			"benchmark.yielders", "" + threads,
+			"benchmark.work", "" + work,
+			"benchmark.yieldInterval", "" + Math.max(work/10, 1),
+			"benchmark.minPriority", "1",
+			"benchmark.maxPriority", "40",
+		});
+
+		return workloads;
+	}
+
+	/** Read the base config, dropping the keys the harness sets itself. */
+	private static List<String> readBaseConfig(String fileName) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String key = line.trim();
+				if (key.startsWith("ThreadedKernel.scheduler")
+						|| key.startsWith("ThreadedKernel.whichTest")
+						|| key.startsWith("statistics.")
+						|| key.startsWith("benchmark."))
+					continue;
+				lines.add(line);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	private static void writeConfig(File conf, List<String> base, String scheduler,
+			File log, String[] overrides) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(conf));
+		for (String line : base)
+			out.println(line);
+		out.println("ThreadedKernel.scheduler = " + scheduler);
+		out.println("statistics.logFile = " + log.getPath());
+		for (int i = 0; i < overrides.length; i += 2)
+			out.println(overrides[i] + " = " + overrides[i + 1]);
+		out.close();
+	}
+
+	/** Boot Nachos in a child JVM and wait for it to halt. */
+	private static void runNachos(File conf, String seed)
+			throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+				System.getProperty("java.class.path"), "nachos.machine.Machine",
+				"-s", seed, "-[]", conf.getPath());
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(conf.getPath() + ".out"));
+
+		int status = builder.start().waitFor();
+		new File(conf.getPath() + ".out").delete();
+		if (status != 0)
+			System.err.println("Nachos exited with status " + status);
+	}
+
+	/** Test if a log field is a number, as in dispatch and finish rows. */
+	private static boolean isNumber(String field) {
+		if (field.isEmpty())
+			return false;
+		for (int i = 0; i < field.length(); i++) {
+			if (!Character.isDigit(field.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compute the report columns from a scheduler log: the <tt>System</tt>
+	 * row, throughput over the span from the first arrival to the last
+	 * finish, and the number of dispatch rows.
+	 */
+	private static String summarize(File log) throws IOException {
+		String system = "0,0,0,0";
+		long dispatches = 0;
+		long firstArrival = Long.MAX_VALUE, lastFinish = 0;
+		int finished = 0;
+
+		BufferedReader in = new BufferedReader(new FileReader(log));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.trim().split(",");
+				if (fields[0].equals("System")) {
+					if (fields.length == 5)
+						system = fields[1] + "," + fields[2] + "," + fields[3] + "," + fields[4];
+				}
+				else if (!isNumber(fields[0])) {
+					// RealTime, Latency, Group, BottomHalves and other summary rows
+					continue;
+				}
+				else if (fields.length == 3) {
+					dispatches++;
+				}
+				else if (fields.length == 5) {
+					finished++;
+					firstArrival = Math.min(firstArrival, Long.parseLong(fields[1]));
+					lastFinish = Math.max(lastFinish, Long.parseLong(fields[4]));
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		String[] stats = system.split(",");
+		double throughput = (finished > 0 && lastFinish > firstArrival)
+				? finished * 1000.0 / (lastFinish - firstArrival) : 0;
+
+		// the first dispatch row is the main thread starting, not a switch
+		return String.format("%s,%.3f,%s,%s,%s,%d", stats[0], throughput,
+				stats[1], stats[2], stats[3], Math.max(dispatches - 1, 0));
+	}
+}
@@ -0,0 +1,175 @@
+package nachos.threads;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * A binary log of scheduler events with fixed-size records. Events are
+ * stored in a preallocated ring buffer with no formatting or allocation, and
+ * are written to disk in batches when the buffer passes its high-water mark
+ * and when the log is closed. This keeps string formatting and file I/O out
+ * of the context-switch path.
+ *
+ * <p>
+ * Each record is {@value #recordBytes} bytes: an <tt>int</tt> event type, an
+ * <tt>int</tt> thread ID and four <tt>long</tt> fields. Running this class as
+ * a program converts a binary log into the CSV format written by
+ * <tt>PriorityScheduler</tt>:
+ *
+ * <p><blockquote><pre>
+ * java nachos.threads.SchedulerEventLog events.bin [events.csv]
+ * </pre></blockquote>
+ */
+public class SchedulerEventLog {
+	/** A thread was dispatched: time, priority. */
+	public static final int eventScheduled = 1;
+	/** A thread finished: arrival time, run time, wait time, finish time. */
+	public static final int eventFinished = 2;
+
+	/** Size of one record on disk. */
+	public static final int recordBytes = 4 + 4 + 4*8;
+
+	/** Words per record in the ring: type and ID packed, then four fields. */
+	private static final int recordWords = 5;
+
+	/**
+	 * Open a new event log.
+	 *
+	 * @param	fileName	the file to write records to.
+	 * @param	capacity	number of records the ring buffer holds.
+	 */
+	public SchedulerEventLog(String fileName, int capacity) throws IOException {
+		this.capacity = Math.max(capacity, 2);
+		this.ring = new long[this.capacity * recordWords];
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName), 1 << 16));
+	}
+
+	/** Record that a thread was dispatched. */
+	public void scheduled(long time, int id, int priority) {
+		append(eventScheduled, id, time, priority, 0, 0);
+	}
+
+	/** Record that a thread finished. */
+	public void finished(int id, long arrival, long run, long wait, long finish) {
+		append(eventFinished, id, arrival, run, wait, finish);
+	}
+
+	private void append(int type, int id, long a, long b, long c, long d) {
+		int slot = ((head + count) % capacity) * recordWords;
+		ring[slot] = ((long) type << 32) | (id & 0xFFFFFFFFL);
+		ring[slot + 1] = a;
+		ring[slot + 2] = b;
+		ring[slot + 3] = c;
+		ring[slot + 4] = d;
+		count++;
+
+		if (count >= capacity / 2)
+			drain();
+	}
+
+	/** Write every buffered record and empty the ring. */
+	private void drain() {
+		try {
+			while (count > 0) {
+				int slot = head * recordWords;
+				out.writeInt((int) (ring[slot] >>> 32));
+				out.writeInt((int) ring[slot]);
+				for (int i = 1; i < recordWords; i++)
+					out.writeLong(ring[slot + i]);
+
+				head = (head + 1) % capacity;
+				count--;
+			}
+			out.flush();
+		}
+		catch (IOException err) {
+			System.err.println("Error writing event log:");
+			System.err.println(err);
+			head = (head + count) % capacity;
+			count = 0;
+		}
+	}
+
+	/** Write remaining records and close the file. */
+	public void close() {
+		drain();
+		try {
+			out.close();
+		}
+		catch (IOException err) {
+			System.err.println("Error closing event log:");
+			System.err.println(err);
+		}
+	}
+
+	/**
+	 * Convert a binary event log into the CSV rows that
+	 * <tt>PriorityScheduler</tt> writes to its text log, followed by the
+	 * <tt>System</tt> summary row recomputed from the finish records.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: java nachos.threads.SchedulerEventLog <log> [csv]");
+			System.exit(1);
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(args[0]), 1 << 16));
+		PrintWriter csv = (args.length > 1) ? new PrintWriter(args[1])
+				: new PrintWriter(System.out);
+
+		int nfinished = 0;
+		long totalWait = 0, totalTurn = 0, maxWait = 0;
+
+		try {
+			while (true) {
+				int type;
+				try {
+					type = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+				int id = in.readInt();
+				long a = in.readLong(), b = in.readLong();
+				long c = in.readLong(), d = in.readLong();
+
+				if (type == eventScheduled) {
+					csv.print(String.format("%d,%d,%d\n", a, id, b));
+				}
+				else if (type == eventFinished) {
+					csv.print(String.format("%d,%d,%d,%d,%d\n", id, a, b, c, d));
+					nfinished++;
+					totalTurn += d - a;
+					if (c > 0) totalWait += c;
+					if (c > maxWait) maxWait = c;
+				}
+			}
+
+			if (nfinished > 0) {
+				int avWait = Math.round(((float) totalWait)/nfinished);
+				int avTurn = Math.round(((float) totalTurn)/nfinished);
+				csv.print(String.format("System,%d,%d,%d,%d\n", nfinished, avWait,
+						maxWait, avTurn));
+			}
+		}
+		finally {
+			in.close();
+			csv.close();
+		}
+	}
+
+	private int capacity;
+	private long[] ring;
+	private int head = 0;
+	private int count = 0;
+	private DataOutputStream out;
+}
@@ -0,0 +1,432 @@
+package nachos.threads;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import nachos.machine.*;
+
+/**
+ * Replays a trace of thread arrivals, CPU bursts and blocking periods through
+ * the queues of a <tt>PriorityScheduler</tt>, without TCBs, host threads or
+ * the simulated machine. Time is a virtual clock in ticks that jumps from one
+ * event to the next, so a trace that would take minutes to run under the
+ * kernel replays in milliseconds, and the same trace can be run against
+ * several schedulers to compare them.
+ *
+ * <p>
+ * The simulation follows the kernel's rules: the timer interrupts the
+ * running thread every <i>quantum</i> ticks and preempts it (it yields) once
+ * the scheduler's own time quantum for the thread has run out, a thread that becomes ready does not
+ * preempt the running thread, and a thread that ends a CPU burst blocks for
+ * the following block period. The scheduler's own <tt>logScheduled()</tt>,
+ * <tt>logEnqueued()</tt>, <tt>logBlocked()</tt> and <tt>logFinished()</tt>
+ * hooks are called exactly as <tt>KThread</tt> calls them, so
+ * <tt>logFinalStats()</tt> reports the same wait and turnaround statistics.
+ * All scheduler time parameters (aging time, latency, real-time periods) are
+ * interpreted in ticks during a replay.
+ *
+ * <p>
+ * A trace file has one thread per line:
+ *
+ * <p><blockquote><pre>
+ * # arrival priority cpu [block cpu]...
+ * 10 15 1200 300 800
+ * </pre></blockquote>
+ *
+ * <p>
+ * A text scheduler log (<tt>statistics.logFile</tt>, or a binary event log
+ * converted by <tt>SchedulerEventLog</tt>) can be replayed as well; since the
+ * log does not record when threads blocked, each thread becomes a single CPU
+ * burst of its logged run time.
+ */
+public class SchedulerSimulator {
+	/**
+	 * One thread of a trace.
+	 */
+	public static class TraceThread {
+		/**
+		 * @param	arrival	time the thread is first ready, in ticks.
+		 * @param	priority	initial priority.
+		 * @param	bursts	alternating CPU and block times, in ticks,
+		 *			starting and ending with a CPU burst.
+		 */
+		public TraceThread(long arrival, int priority, long[] bursts) {
+			Lib.assertTrue(bursts.length % 2 == 1);
+			this.arrival = arrival;
+			this.priority = priority;
+			this.bursts = bursts;
+		}
+
+		long arrival;
+		int priority;
+		long[] bursts;
+	}
+
+	/**
+	 * Allocate a simulator for the specified scheduler. The scheduler must
+	 * not be the kernel's scheduler, and is used for one replay only.
+	 *
+	 * @param	scheduler	the scheduler whose queues are replayed.
+	 * @param	quantum		ticks between timer interrupts.
+	 */
+	public SchedulerSimulator(PriorityScheduler scheduler, long quantum) {
+		Lib.assertTrue(scheduler != ThreadedKernel.scheduler && quantum > 0);
+
+		this.scheduler = scheduler;
+		this.quantum = quantum;
+		scheduler.simulator = this;
+	}
+
+	/** Write a row to the log for every dispatch and finish, as the kernel does. */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	boolean isVerbose() {
+		return verbose;
+	}
+
+	/** Return the simulated time, in ticks. */
+	long getTime() {
+		return now;
+	}
+
+	/** Return the simulated thread holding (or last holding) the CPU. Before
+	 * the first dispatch this is the kernel's main thread, which schedulers
+	 * never charge. */
+	KThread currentThread() {
+		return (running != null) ? running.thread : KThread.currentThread();
+	}
+
+	/** Return the number of dispatches made by the last replay. */
+	public long getDispatches() {
+		return dispatches;
+	}
+
+	/** Return the simulated time at which the last replay ended. */
+	public long getEndTime() {
+		return now;
+	}
+
+	/** Simulated thread: a trace entry and its progress. */
+	private static class SimThread {
+		SimThread(TraceThread trace, KThread thread) {
+			this.trace = trace;
+			this.thread = thread;
+			this.readyAt = trace.arrival;
+			this.remaining = trace.bursts[0];
+		}
+
+		TraceThread trace;
+		KThread thread;
+		/** Time of the next arrival or wakeup. */
+		long readyAt;
+		/** Index of the current CPU burst in <tt>trace.bursts</tt>. */
+		int burst = 0;
+		/** CPU time left in the current burst. */
+		long remaining;
+		/** Creation order, to break ties between events at the same time. */
+		int seq;
+	}
+
+	/** Orders pending arrivals and wakeups by time, then by trace order. */
+	private static class ReadyAtComparator implements Comparator<SimThread> {
+		@Override
+		public int compare(SimThread t1, SimThread t2) {
+			if (t1.readyAt != t2.readyAt)
+				return t1.readyAt < t2.readyAt ? -1 : 1;
+			return t1.seq - t2.seq;
+		}
+	}
+
+	/**
+	 * Replay a trace to completion, then write the scheduler's final
+	 * statistics to the kernel log.
+	 *
+	 * @param	trace	the threads to replay.
+	 */
+	public void run(List<TraceThread> trace) {
+		boolean intStatus = Interrupts.disable();
+
+		PriorityQueue<SimThread> pending = new PriorityQueue<SimThread>(
+				Math.max(trace.size(), 1), new ReadyAtComparator());
+		for (int i = 0; i < trace.size(); i++) {
+			TraceThread t = trace.get(i);
+			SimThread sim = new SimThread(t,
+					KThread.newSimulatedThread("simulated thread " + i));
+			sim.seq = i;
+			scheduler.setFixPriority(sim.thread, t.priority);
+			pending.add(sim);
+		}
+
+		ThreadQueue readyQueue = scheduler.newReadyQueue();
+		HashMap<KThread, SimThread> byThread = new HashMap<KThread, SimThread>();
+		for (SimThread sim : pending)
+			byThread.put(sim.thread, sim);
+
+		now = 0;
+		running = null;
+		dispatches = 0;
+
+		SimThread current = null;
+		long sliceEnd = 0;
+
+		while (true) {
+			if (current == null) {
+				KThread next = readyQueue.nextThread();
+				if (next == null) {
+					if (pending.isEmpty())
+						break;
+
+					// idle until the next thread becomes ready
+					now = Math.max(now, pending.peek().readyAt);
+					makeReady(pending, readyQueue);
+					continue;
+				}
+
+				current = byThread.get(next);
+				running = current;
+				next.setSimulatedReady(false);
+				scheduler.getThreadState(next).logScheduled();
+				sliceEnd = now + quantum;
+				dispatches++;
+			}
+
+			long runUntil = Math.min(now + current.remaining, sliceEnd);
+			if (!pending.isEmpty() && pending.peek().readyAt <= runUntil) {
+				long at = Math.max(now, pending.peek().readyAt);
+				current.remaining -= at - now;
+				now = at;
+				makeReady(pending, readyQueue);
+				continue;
+			}
+
+			current.remaining -= runUntil - now;
+			now = runUntil;
+
+			PriorityScheduler.ThreadState state = scheduler.getThreadState(current.thread);
+			if (current.remaining > 0) {
+				// timer interrupt: the thread keeps the CPU until its quantum
+				// runs out, and is then preempted
+				if (!scheduler.timerInterrupt()) {
+					sliceEnd = now + quantum;
+					continue;
+				}
+				current.thread.setSimulatedReady(true);
+				readyQueue.waitForAccess(current.thread);
+				state.logEnqueued();
+				state.ageValUp();
+			}
+			else if (current.burst + 1 < current.trace.bursts.length) {
+				// burst over: block until the block period has passed
+				state.logBlocked();
+				current.readyAt = now + current.trace.bursts[current.burst + 1];
+				current.burst += 2;
+				current.remaining = current.trace.bursts[current.burst];
+				pending.add(current);
+			}
+			else {
+				state.logFinished();
+				byThread.remove(current.thread);
+			}
+			current = null;
+		}
+
+		running = null;
+		Interrupts.restore(intStatus);
+
+		scheduler.logFinalStats();
+	}
+
+	/** Move every thread whose arrival or wakeup time has come to the ready queue. */
+	private void makeReady(PriorityQueue<SimThread> pending, ThreadQueue readyQueue) {
+		while (!pending.isEmpty() && pending.peek().readyAt <= now) {
+			SimThread sim = pending.poll();
+			sim.thread.setSimulatedReady(true);
+			readyQueue.waitForAccess(sim.thread);
+			scheduler.getThreadState(sim.thread).logEnqueued();
+		}
+	}
+
+	/**
+	 * Read a trace file. Blank lines and lines starting with <tt>#</tt> are
+	 * ignored; every other line is <tt>arrival priority cpu [block cpu]...</tt>.
+	 */
+	public static List<TraceThread> readTrace(String fileName) throws IOException {
+		List<TraceThread> trace = new ArrayList<TraceThread>();
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+
+				String[] fields = line.split("[\\s,]+");
+				long[] bursts = new long[fields.length - 2];
+				for (int i = 0; i < bursts.length; i++)
+					bursts[i] = Long.parseLong(fields[i + 2]);
+				trace.add(new TraceThread(Long.parseLong(fields[0]),
+						Integer.parseInt(fields[1]), bursts));
+			}
+		}
+		finally {
+			in.close();
+		}
+		return trace;
+	}
+
+	/**
+	 * Build a trace from a text scheduler log. Each finished thread becomes
+	 * one CPU burst of its logged run time, arriving at its logged arrival
+	 * time with the priority it was first dispatched at.
+	 */
+	public static List<TraceThread> readSchedulerLog(String fileName) throws IOException {
+		HashMap<Integer, Integer> priorities = new HashMap<Integer, Integer>();
+		List<TraceThread> trace = new ArrayList<TraceThread>();
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.trim().split(",");
+				if (fields.length == 3) {
+					// time, id, priority
+					Integer id = Integer.valueOf(fields[1]);
+					if (!priorities.containsKey(id))
+						priorities.put(id, Integer.valueOf(fields[2]));
+				}
+				else if (fields.length == 5 && !fields[0].equals("System")) {
+					// id, arrival, run, wait, finish
+					Integer priority = priorities.get(Integer.valueOf(fields[0]));
+					trace.add(new TraceThread(Long.parseLong(fields[1]),
+							(priority != null) ? priority.intValue() : 11,
+							new long[] { Math.max(1, Long.parseLong(fields[2])) }));
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		return trace;
+	}
+
+	/**
+	 * Generate a synthetic trace. Inter-arrival, CPU burst and block times
+	 * are exponentially distributed; the number of CPU bursts and the
+	 * priority are uniform. The same seed always gives the same trace.
+	 *
+	 * @param	seed		random seed.
+	 * @param	threads		number of threads.
+	 * @param	meanArrival	mean time between arrivals, in ticks.
+	 * @param	meanBurst	mean CPU burst, in ticks.
+	 * @param	meanBlock	mean block time, in ticks.
+	 * @param	maxBursts	largest number of CPU bursts per thread.
+	 * @param	minPriority	most favoured priority to assign.
+	 * @param	maxPriority	least favoured priority to assign.
+	 */
+	public static List<TraceThread> generate(long seed, int threads,
+			long meanArrival, long meanBurst, long meanBlock, int maxBursts,
+			int minPriority, int maxPriority) {
+		Random random = new Random(seed);
+		List<TraceThread> trace = new ArrayList<TraceThread>(threads);
+
+		// start at 1: the scheduler ignores threads that arrive at time 0
+		long arrival = 1;
+		for (int i = 0; i < threads; i++) {
+			arrival += exponential(random, meanArrival);
+
+			int nbursts = 1 + random.nextInt(Math.max(maxBursts, 1));
+			long[] bursts = new long[2*nbursts - 1];
+			for (int b = 0; b < bursts.length; b++)
+				bursts[b] = 1 + exponential(random, (b % 2 == 0) ? meanBurst : meanBlock);
+
+			int priority = minPriority + random.nextInt(maxPriority - minPriority + 1);
+			trace.add(new TraceThread(arrival, priority, bursts));
+		}
+		return trace;
+	}
+
+	private static long exponential(Random random, long mean) {
+		return (long) (-mean * Math.log(1 - random.nextDouble()));
+	}
+
+	/**
+	 * Replay one trace through each scheduler listed in
+	 * <tt>simulator.schedulers</tt> (by default the configured scheduler),
+	 * writing a <tt>Simulation</tt> row followed by the scheduler's final
+	 * statistics for each. The trace is read from <tt>simulator.trace</tt>
+	 * (a scheduler log if the name ends in <tt>.csv</tt>), or generated from
+	 * <tt>simulator.seed</tt> and the other <tt>simulator.*</tt> keys.
+	 */
+	public static void selfTest() {
+		ThreadedKernel kernel = (ThreadedKernel) Kernel.kernel;
+
+		List<TraceThread> trace;
+		String traceName = Config.getString("simulator.trace");
+		try {
+			if (traceName == null) {
+				trace = generate(Config.getInteger("simulator.seed", 0),
+						Config.getInteger("simulator.threads", 1000),
+						Config.getInteger("simulator.meanArrival", 1500),
+						Config.getInteger("simulator.meanBurst", 400),
+						Config.getInteger("simulator.meanBlock", 1000),
+						Config.getInteger("simulator.bursts", 4),
+						Config.getInteger("simulator.minPriority", 1),
+						Config.getInteger("simulator.maxPriority",
+								Config.getInteger("scheduler.maxPriorityValue")));
+			}
+			else if (traceName.endsWith(".csv")) {
+				trace = readSchedulerLog(traceName);
+			}
+			else {
+				trace = readTrace(traceName);
+			}
+		}
+		catch (IOException err) {
+			System.err.println("Error reading trace:");
+			System.err.println(err);
+			return;
+		}
+
+		String schedulers = Config.getString("simulator.schedulers",
+				Config.getString("ThreadedKernel.scheduler"));
+
+		for (String name : schedulers.split(",")) {
+			name = name.trim();
+			PriorityScheduler scheduler = ThreadedKernel.createScheduler(name);
+			if (scheduler == null) {
+				System.err.println("Unknown scheduler " + name + ", skipping.");
+				continue;
+			}
+			scheduler.kernel = kernel;
+
+			SchedulerSimulator sim = new SchedulerSimulator(scheduler,
+					Config.getInteger("simulator.quantum", Stats.TimerTicks));
+			sim.setVerbose(Config.getBoolean("simulator.verbose", false));
+
+			long start = System.currentTimeMillis();
+			kernel.logprint(String.format("Simulation,%s,%d,%d\n", name,
+					trace.size(), Config.getInteger("simulator.quantum", Stats.TimerTicks)));
+			sim.run(trace);
+			kernel.logprint(String.format("Replay,%d,%d,%d\n", sim.getDispatches(),
+					sim.getEndTime(), System.currentTimeMillis() - start));
+		}
+	}
+
+	private PriorityScheduler scheduler;
+	private long quantum;
+	private boolean verbose = false;
+
+	/** Current simulated time, in ticks. */
+	private long now = 0;
+	/** Thread holding, or last holding, the simulated CPU. */
+	private SimThread running = null;
+	private long dispatches = 0;
+}
@@ -0,0 +1,83 @@
+package nachos.threads;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A node in a tree of scheduling groups, in the style of Linux cgroups.
+ * Sibling groups share the CPU time of their parent in proportion to their
+ * weights. Threads belong to groups without child groups.
+ *
+ * <p>
+ * Groups are created with <tt>Scheduler.createGroup()</tt>; the runnable
+ * bookkeeping below is maintained by <tt>FairShareScheduler</tt> with
+ * interrupts disabled.
+ */
+public class SchedulingGroup {
+	SchedulingGroup(SchedulingGroup parent, String name, int weight, int id) {
+		this.parent = parent;
+		this.name = name;
+		this.weight = weight;
+		this.id = id;
+		if (parent != null)
+			parent.childCount++;
+	}
+
+	/** Return the name of this group. */
+	public String getName() {
+		return name;
+	}
+
+	/** Return the weight of this group among its siblings. */
+	public int getWeight() {
+		return weight;
+	}
+
+	/** Return the parent group, or <tt>null</tt> for the root. */
+	public SchedulingGroup getParent() {
+		return parent;
+	}
+
+	/** Return the CPU time used by the threads of this group and its
+	 * descendants. */
+	public long getCpuTime() {
+		return cpuTime;
+	}
+
+	public String toString() {
+		return (parent == null || parent.parent == null) ? name
+				: parent + "/" + name;
+	}
+
+	/** Orders runnable child groups by virtual runtime, then by creation. */
+	static class VruntimeComparator implements Comparator<SchedulingGroup> {
+		public int compare(SchedulingGroup g1, SchedulingGroup g2) {
+			if (g1.vruntime != g2.vruntime)
+				return g1.vruntime < g2.vruntime ? -1 : 1;
+			return g1.id - g2.id;
+		}
+	}
+
+	final SchedulingGroup parent;
+	final String name;
+	final int weight;
+	final int id;
+
+	/** CPU time used, and the same scaled down by <tt>weight</tt>. */
+	long cpuTime = 0;
+	long vruntime = 0;
+
+	/** Number of child groups and of member threads. */
+	int childCount = 0;
+	int threadCount = 0;
+
+	/** Child groups with runnable threads below them. */
+	TreeSet<SchedulingGroup> runnable =
+			new TreeSet<SchedulingGroup>(new VruntimeComparator());
+
+	/** Monotonic lower bound on the virtual runtime of runnable children. */
+	long minVruntime = 0;
+
+	/** Runnable member threads, best priority first. */
+	ThreadHeap threads;
+}
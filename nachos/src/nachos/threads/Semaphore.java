@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayDeque;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value.
  * A semaphore has only two operations:
@@ -35,7 +37,7 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
-	boolean intStatus = Machine.interrupt().disable();
+	boolean intStatus = Interrupts.disable();
 
 	if (value == 0) {
 	    waitQueue.waitForAccess(KThread.currentThread());
@@ -45,25 +47,97 @@ public class Semaphore {
 	    value--;
 	}
 
-	Machine.interrupt().restore(intStatus);
+	Interrupts.restore(intStatus);
+    }
+
+    /**
+     * Decrement this semaphore if it is non-zero, without waiting.
+     *
+     * @return	<tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean tryP() {
+	return P(0);
+    }
+
+    /**
+     * Wait at most <i>ticks</i> for this semaphore to become non-zero and
+     * decrement it. A thread that times out is removed from the wait queue
+     * by the alarm.
+     *
+     * @param	ticks	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented,
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long ticks) {
+	boolean intStatus = Interrupts.disable();
+
+	boolean decremented = true;
+	if (value > 0) {
+	    value--;
+	}
+	else if (ticks > 0) {
+	    KThread thread = KThread.currentThread();
+	    waitQueue.waitForAccess(thread);
+	    Alarm.Timeout timeout =
+		ThreadedKernel.alarm.setTimeout(thread, waitQueue, ticks);
+	    KThread.sleep();
+	    // V() wakes a waiter instead of incrementing the value
+	    decremented = timeout.cancel();
+	}
+	else {
+	    decremented = false;
+	}
+
+	Interrupts.restore(intStatus);
+
+	return decremented;
+    }
+
+    /**
+     * Asynchronous <tt>P()</tt> for lightweight tasks. Decrement this
+     * semaphore as soon as it is non-zero, then run <i>continuation</i> on
+     * <tt>ThreadedKernel.tasks</tt>. Never blocks the caller.
+     *
+     * @param	continuation	the next step of the calling task.
+     */
+    public void P(Runnable continuation) {
+	Lib.assertTrue(continuation != null);
+
+	boolean intStatus = Interrupts.disable();
+
+	if (value == 0) {
+	    if (taskWaiters == null)
+		taskWaiters = new ArrayDeque<Runnable>();
+	    taskWaiters.add(continuation);
+	}
+	else {
+	    value--;
+	    ThreadedKernel.tasks.execute(continuation);
+	}
+
+	Interrupts.restore(intStatus);
     }
 
     /**
      * Atomically increment this semaphore and wake up at most one other thread
-     * sleeping on this semaphore.
+     * sleeping on this semaphore. Threads waiting in <tt>P()</tt> are woken
+     * before tasks waiting in <tt>P(Runnable)</tt>.
      */
     public void V() {
-	boolean intStatus = Machine.interrupt().disable();
+	boolean intStatus = Interrupts.disable();
 
 	KThread thread = waitQueue.nextThread();
 	if (thread != null) {
 	    thread.ready();
 	}
+	else if (taskWaiters != null && !taskWaiters.isEmpty()) {
+	    ThreadedKernel.tasks.execute(taskWaiters.poll());
+	}
 	else {
 	    value++;
 	}
 	
-	Machine.interrupt().restore(intStatus);
+	Interrupts.restore(intStatus);
     }
 
     private static class PingTest implements Runnable {
@@ -96,9 +170,37 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// a timed-out waiter must not consume a later V()
+	final Semaphore sem = new Semaphore(0);
+	final long start = Machine.timer().getTime();
+	Lib.assertTrue(!sem.tryP());
+
+	new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(!sem.P(1000));
+		    Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+		}
+	    }).setName("timed P").fork();
+
+	ThreadedKernel.alarm.waitUntil(5000);
+	sem.V();
+	Lib.assertTrue(sem.tryP());
+	Lib.assertTrue(!sem.tryP());
+
+	new KThread(new Runnable() {
+		public void run() {
+		    sem.V();
+		}
+	    }).setName("V").fork();
+	Lib.assertTrue(sem.P(100000));
+	Lib.assertTrue(Machine.timer().getTime() - start < 100000);
     }
 
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+    /** Continuations of tasks waiting in <tt>P(Runnable)</tt>, allocated on
+     * first use. */
+    private ArrayDeque<Runnable> taskWaiters = null;
 }
@@ -34,20 +34,27 @@ public class StaticPriorityScheduler extends PriorityScheduler {
 	
 	protected class StaticPriorityThreadQueue extends PriorityScheduler.PriorityThreadQueue {
 
-		private PriorityThreadQueue.ThreadComparator tComp = 
-				new PriorityThreadQueue.ThreadComparator();
-		private java.util.PriorityQueue<KThread> waitQueue =
-				new java.util.PriorityQueue<KThread>(ThreadedKernel.numThreads, tComp);
+		private ThreadHeap waitQueue = new ThreadHeap(new PriorityComparator(),
+				ThreadedKernel.numThreads);
+		
+		KThread main;
 		
 		public StaticPriorityThreadQueue(boolean transferPriority) {
 			super(transferPriority);
 		}
 
-		public void waitForAccess(KThread thread) {
+		protected void enqueue(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled(),
 					"Interrupts not disabled in required critical section.");
 			
-			waitQueue.add(thread);
+			// Like the other schedulers, hold the main thread back until the
+			// test threads are done, so that the kernel does not halt early.
+			if (thread.isMainThread()) {
+				this.main = thread;
+				return;
+			}
+			
+			waitQueue.add(getThreadState(thread));
 		}
 
 		public void acquire(KThread thread) {
@@ -55,18 +62,34 @@ public class StaticPriorityScheduler extends PriorityScheduler {
 					"Interrupts not disabled in required critical section.");
 			Lib.assertTrue(waitQueue.isEmpty(), 
 					"Attempted to aquire with non-empty wait queue.");			
+			super.acquire(thread);
 		}
 
 		@Override
-		public KThread nextThread() {
+		protected KThread dequeue() {
 			Lib.assertTrue(Machine.interrupt().disabled(),
 					"Interrupts not disabled in required critical section.");
 			
-			return waitQueue.poll();
+			ThreadState state = waitQueue.poll();
+			if (state == null) {
+				KThread m = main;
+				main = null;
+				return m;
+			}
+			return state.thread;
 		}
 		
-		public void updatePriority(){
-			
+		/** Remove a waiting thread, in O(log n). */
+		protected void removeWaiter(KThread thread) {
+			if (thread == main)
+				main = null;
+			else
+				waitQueue.remove(getThreadState(thread));
+		}
+		
+		/** Reposition a waiting thread whose priority changed. */
+		protected void priorityChanged(ThreadState state) {
+			if (waitQueue.contains(state)) waitQueue.update(state);
 		}
 
 		
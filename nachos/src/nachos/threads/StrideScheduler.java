@@ -0,0 +1,263 @@
+package nachos.threads;
+
+import java.util.Comparator;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A deterministic proportional-share scheduler. Every thread holds a number
+ * of tickets; its <i>stride</i> is inversely proportional to its tickets and
+ * its <i>pass</i> advances by one stride each time it is dispatched from the
+ * ready queue. The thread with the smallest pass is always chosen next, so
+ * over any interval each thread receives CPU time in proportion to its
+ * tickets, with no randomness involved.
+ *
+ * <p>
+ * Wait queues for locks, semaphores and the like are also ordered by pass,
+ * but passing through one leaves the pass alone, so a thread that blocks
+ * often is charged only for the times it is given the CPU.
+ *
+ * <p>
+ * By default a thread's tickets are derived from its priority, so that
+ * priority 1 (the most favoured) holds the most tickets. Tickets may also be
+ * set directly with <tt>setTickets()</tt>, including while the thread is
+ * waiting in a queue.
+ */
+public class StrideScheduler extends PriorityScheduler {
+
+	/** Numerator used to compute strides. Large enough that integer division
+	 * keeps strides distinct for every legal ticket count. */
+	protected static final long stride1 = 1 << 20;
+
+	/** Pass of the thread most recently dispatched from the ready queue. */
+	protected long globalPass = 0;
+
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+		super();
+	}
+
+	/**
+	 * @see nachos.threads.PriorityScheduler#newThreadQueue(boolean)
+	 */
+	@Override
+	public PriorityThreadQueue newThreadQueue(boolean transferPriority) {
+		return new PriorityThreadQueue(transferPriority);
+	}
+
+	/** The ready queue is the only queue that advances passes. */
+	@Override
+	public ThreadQueue newReadyQueue() {
+		return new ReadyQueue();
+	}
+
+	public ThreadState getThreadState(KThread thread) {
+		if (thread.thdSchedState == null) initThreadState(thread);
+		return (ThreadState) thread.thdSchedState;
+	}
+
+	protected void initThreadState(KThread thread) {
+		thread.thdSchedState = new StrideScheduler.ThreadState(thread);
+	}
+
+	/**
+	 * Get the number of tickets held by the specified thread.
+	 *
+	 * @param thread	thread from which to return tickets
+	 *
+	 * @return tickets of input thread
+	 */
+	public int getTickets(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).tickets;
+	}
+
+	/**
+	 * Set the number of tickets held by the specified thread. The thread may
+	 * already be waiting in a queue, in which case it is repositioned.
+	 *
+	 * @param thread	thread whose tickets are changed
+	 * @param tickets	new ticket count, at least 1
+	 */
+	public void setTickets(KThread thread, int tickets) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(tickets >= 1 && tickets <= stride1);
+
+		getThreadState(thread).setTickets(tickets);
+	}
+
+
+	protected class ThreadState extends PriorityScheduler.ThreadState {
+
+		/** Number of tickets held by the thread. */
+		protected int tickets;
+
+		/** Pass increment per dispatch, <tt>stride1/tickets</tt>. */
+		protected long stride;
+
+		/** Virtual time at which the thread should next run, or -1 before it
+		 * is first enqueued. */
+		protected long pass;
+
+		public ThreadState(KThread thread) {
+			// tickets and stride are filled in by setPriority() during super()
+			super(thread);
+
+			this.pass = -1;
+		}
+
+		/**
+		 * Sets priority of the thread and derives its tickets from it.
+		 */
+		protected void setPriority(int priority) {
+			super.setPriority(priority);
+			setTickets(priorityMaximum + 1 - priority);
+		}
+
+		/**
+		 * Change the thread's tickets. If the thread is queued, its remaining
+		 * distance to the global pass is rescaled by the new stride and the
+		 * thread is sifted to its new heap position.
+		 */
+		protected void setTickets(int tickets) {
+			long newStride = stride1 / tickets;
+			PriorityThreadQueue queue = (PriorityThreadQueue) waitingOn;
+
+			if (queue != null && pass >= 0) {
+				long remain = pass - globalPass;
+				pass = globalPass + remain * newStride / stride;
+			}
+
+			this.tickets = tickets;
+			this.stride = newStride;
+
+			if (queue != null)
+				queue.priorityChanged(this);
+		}
+	}
+
+
+	protected class PriorityThreadQueue extends PriorityScheduler.PriorityThreadQueue {
+
+		/** Orders waiting threads by pass, then by arrival. */
+		private class PassComparator implements Comparator<PriorityScheduler.ThreadState> {
+			@Override
+			public int compare(PriorityScheduler.ThreadState s1, PriorityScheduler.ThreadState s2) {
+				long p1 = ((ThreadState) s1).pass;
+				long p2 = ((ThreadState) s2).pass;
+				if (p1 != p2) return p1 < p2 ? -1 : 1;
+				if (s1.enqueueSeq != s2.enqueueSeq)
+					return s1.enqueueSeq < s2.enqueueSeq ? -1 : 1;
+				return 0;
+			}
+		}
+
+		private ThreadHeap heap = new ThreadHeap(new PassComparator(),
+				ThreadedKernel.numThreads);
+
+		KThread main;
+
+		public PriorityThreadQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		@Override
+		protected void enqueue(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(), "Interrupts not disabled in critical section.");
+
+			if (thread.isMainThread()) {
+				this.main = thread;
+				return;
+			}
+
+			heap.add(getThreadState(thread));
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+			Lib.assertTrue(heap.isEmpty(),
+					"Attempted to aquire with non-empty wait queue.");
+			super.acquire(thread);
+		}
+
+		@Override
+		protected KThread dequeue() {
+			Lib.assertTrue(Machine.interrupt().disabled(),
+					"Interrupts not disabled in required critical section.");
+
+			if (heap.isEmpty()) {
+				KThread m = main;
+				main = null;
+				return m;
+			}
+
+			return heap.poll().thread;
+		}
+
+		/** Remove a waiting thread, in O(log n). */
+		protected void removeWaiter(KThread thread) {
+			if (thread == main)
+				main = null;
+			else
+				heap.remove(getThreadState(thread));
+		}
+		
+		/** Restore heap order after the pass of a queued thread changed. */
+		protected void priorityChanged(PriorityScheduler.ThreadState state) {
+			if (heap.contains(state)) heap.update(state);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < heap.size(); i++) {
+				ThreadState state = (ThreadState) heap.get(i);
+				System.out.print(state.thread + " (pass " + state.pass + ") ");
+			}
+		}
+	}
+
+
+	/**
+	 * The ready queue. A thread dispatched from it is charged one stride, and
+	 * a thread entering it is first brought up to the global pass.
+	 */
+	protected class ReadyQueue extends PriorityThreadQueue {
+
+		public ReadyQueue() {
+			super(false);
+		}
+
+		@Override
+		protected void enqueue(KThread thread) {
+			if (!thread.isMainThread()) {
+				ThreadState state = getThreadState(thread);
+
+				// A new thread starts one stride ahead, so more tickets run sooner.
+				if (state.pass < 0) state.pass = globalPass + state.stride;
+				// A thread returning from a long sleep must not monopolize the CPU.
+				else if (state.pass < globalPass) state.pass = globalPass;
+			}
+
+			super.enqueue(thread);
+		}
+
+		@Override
+		protected KThread dequeue() {
+			KThread thread = super.dequeue();
+
+			if (thread != null && !thread.isMainThread()) {
+				ThreadState state = getThreadState(thread);
+				globalPass = state.pass;
+				state.pass += state.stride;
+			}
+			return thread;
+		}
+	}
+}
@@ -1,37 +1,126 @@
 package nachos.threads;
 
-import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * The queue is a bounded ring buffer. Producers that find it full either
+ * wait for room (<tt>add()</tt>, <tt>addAll()</tt>), give up at once
+ * (<tt>offer()</tt>) or after a timeout, so a fast producer cannot make the
+ * queue grow without bound. The batch operations move many objects per
+ * acquisition of the queue's lock.
  */
 public class SynchList {
+    /** Capacity of a queue allocated without one. */
+    public static final int defaultCapacity = 256;
+
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new synchronized queue with the default capacity.
      */
     public SynchList() {
-	list = new LinkedList();
+	this(defaultCapacity);
+    }
+
+    /**
+     * Allocate a new synchronized queue.
+     *
+     * @param	capacity	the most objects the queue can hold.
+     */
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new Object[capacity];
 	lock = new Lock();
-	listEmpty = new Condition(lock);
+	listEmpty = new Condition2(lock);
+	listFull = new Condition2(lock);
     }
 
     /**
-     * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * Add the specified object to the end of the queue, waiting while the
+     * queue is full. If another thread is waiting in <tt>removeFirst()</tt>,
+     * it is woken up.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
     public void add(Object o) {
 	Lib.assertTrue(o != null);
-	
+
 	lock.acquire();
-	list.add(o);
+	while (count == buffer.length)
+	    listFull.sleep();
+	put(o);
 	listEmpty.wake();
 	lock.release();
     }
 
+    /**
+     * Add the specified object to the end of the queue if there is room.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, <tt>false</tt> if the
+     *		queue was full.
+     */
+    public boolean offer(Object o) {
+	return offer(o, 0);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, waiting at most
+     * <i>ticks</i> for room.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @param	ticks	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the object was added, <tt>false</tt> if the
+     *		queue stayed full.
+     */
+    public boolean offer(Object o, long ticks) {
+	Lib.assertTrue(o != null);
+
+	long deadline = Machine.timer().getTime() + ticks;
+
+	lock.acquire();
+	while (count == buffer.length) {
+	    if (!listFull.sleep(deadline - Machine.timer().getTime()) && count == buffer.length) {
+		lock.release();
+		return false;
+	    }
+	}
+	put(o);
+	listEmpty.wake();
+	lock.release();
+
+	return true;
+    }
+
+    /**
+     * Add all of the specified objects to the end of the queue, in order,
+     * waiting for room as needed. Each time the queue has room, as many
+     * objects as fit are added under a single acquisition of the lock.
+     *
+     * @param	batch	the objects to add. None may be <tt>null</tt>.
+     */
+    public void addAll(Object[] batch) {
+	lock.acquire();
+	for (int i = 0; i < batch.length; ) {
+	    while (count == buffer.length)
+		listFull.sleep();
+
+	    int added = 0;
+	    for (; i < batch.length && count < buffer.length; i++, added++) {
+		Lib.assertTrue(batch[i] != null);
+		put(batch[i]);
+	    }
+	    if (added > 1)
+		listEmpty.wakeAll();
+	    else
+		listEmpty.wake();
+	}
+	lock.release();
+    }
+
     /**
      * Remove an object from the front of the queue, blocking until the queue
      * is non-empty if necessary.
@@ -42,11 +131,111 @@ public class SynchList {
 	Object o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (count == 0)
+	    listEmpty.sleep();
+	o = take();
+	listFull.wake();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if there is one.
+     *
+     * @return	the element removed, or <tt>null</tt> if the queue was empty.
+     */
+    public Object poll() {
+	return poll(0);
+    }
+
+    /**
+     * Remove an object from the front of the queue, waiting at most
+     * <i>ticks</i> for one to arrive.
+     *
+     * @param	ticks	the most clock ticks to wait.
+     * @return	the element removed, or <tt>null</tt> if the queue stayed
+     *		empty.
+     */
+    public Object poll(long ticks) {
+	long deadline = Machine.timer().getTime() + ticks;
+
+	lock.acquire();
+	while (count == 0) {
+	    if (!listEmpty.sleep(deadline - Machine.timer().getTime()) && count == 0) {
+		lock.release();
+		return null;
+	    }
+	}
+	Object o = take();
+	listFull.wake();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <tt>batch.length</tt> objects from the front of the queue
+     * under a single acquisition of the lock, blocking until the queue is
+     * non-empty if necessary.
+     *
+     * @param	batch	the array to store the removed objects in, in order.
+     * @return	the number of objects removed, at least 1.
+     */
+    public int drainTo(Object[] batch) {
+	Lib.assertTrue(batch.length > 0);
+
+	lock.acquire();
+	while (count == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+
+	int n = 0;
+	while (n < batch.length && count > 0)
+	    batch[n++] = take();
+
+	if (n > 1)
+	    listFull.wakeAll();
+	else
+	    listFull.wake();
 	lock.release();
 
+	return n;
+    }
+
+    /**
+     * Return the number of objects in the queue. The value may be stale by
+     * the time the caller sees it.
+     *
+     * @return	the number of objects in the queue.
+     */
+    public int size() {
+	lock.acquire();
+	int n = count;
+	lock.release();
+	return n;
+    }
+
+    /**
+     * Return the most objects the queue can hold.
+     *
+     * @return	the capacity of the queue.
+     */
+    public int capacity() {
+	return buffer.length;
+    }
+
+    /** Append an object. The lock must be held and there must be room. */
+    private void put(Object o) {
+	buffer[(head + count) % buffer.length] = o;
+	count++;
+    }
+
+    /** Remove the first object. The lock must be held and the queue non-empty. */
+    private Object take() {
+	Object o = buffer[head];
+	buffer[head] = null;
+	head = (head + 1) % buffer.length;
+	count--;
 	return o;
     }
 
@@ -55,7 +244,7 @@ public class SynchList {
 	    this.ping = ping;
 	    this.pong = pong;
 	}
-	
+
 	public void run() {
 	    for (int i=0; i<10; i++)
 		pong.add(ping.removeFirst());
@@ -79,10 +268,42 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	// a producer adding batches is held back by a small queue
+	final SynchList queue = new SynchList(8);
+	final int total = 1000;
+	new KThread(new Runnable() {
+		public void run() {
+		    Object[] batch = new Object[20];
+		    for (int i = 0; i < total; i += batch.length) {
+			for (int k = 0; k < batch.length; k++)
+			    batch[k] = new Integer(i + k);
+			queue.addAll(batch);
+			Lib.assertTrue(queue.size() <= queue.capacity());
+		    }
+		}
+	    }).setName("batch producer").fork();
+
+	Object[] batch = new Object[5];
+	for (int next = 0; next < total; ) {
+	    int n = queue.drainTo(batch);
+	    for (int k = 0; k < n; k++)
+		Lib.assertTrue(((Integer) batch[k]).intValue() == next++);
+	}
+
+	Lib.assertTrue(queue.poll() == null);
+	Lib.assertTrue(queue.poll(1000) == null);
+	for (int i = 0; i < queue.capacity(); i++)
+	    Lib.assertTrue(queue.offer(new Integer(i)));
+	Lib.assertTrue(!queue.offer(new Integer(-1)));
+	Lib.assertTrue(!queue.offer(new Integer(-1), 1000));
+	Lib.assertTrue(((Integer) queue.poll()).intValue() == 0);
     }
 
-    private LinkedList list;
+    private Object[] buffer;
+    private int head = 0;
+    private int count = 0;
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
+    private Condition2 listFull;
 }
-
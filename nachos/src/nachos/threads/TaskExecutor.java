@@ -0,0 +1,172 @@
+package nachos.threads;
+
+import java.util.ArrayDeque;
+
+import nachos.machine.*;
+
+/**
+ * Runs lightweight kernel tasks on a single <tt>KThread</tt>. A task is a
+ * chain of steps, each a <tt>Runnable</tt> that runs to completion without
+ * blocking. Instead of sleeping, a step that must wait passes the next step
+ * (its continuation) to an asynchronous operation such as
+ * <tt>Semaphore.P(Runnable)</tt> or <tt>Lock.acquire(Runnable)</tt> and
+ * returns; the continuation is scheduled here once the wait is over. Tasks
+ * have no stack or TCB of their own, so tens of thousands of them cost no
+ * more than the objects that hold their state.
+ *
+ * <p>
+ * Steps run in FIFO order on the executor's thread, which is forked on the
+ * first call to <tt>execute()</tt> and sleeps while there is nothing to run.
+ * Since all steps share one thread, a step must never block: a blocking call
+ * would stall every task, and a step may not call <tt>Lock.acquire()</tt> on
+ * a lock that some task holds. The kernel's executor is
+ * <tt>ThreadedKernel.tasks</tt>.
+ */
+public class TaskExecutor {
+	/**
+	 * Allocate a new executor. Its thread is not forked until the first step
+	 * is submitted.
+	 *
+	 * @param	name	the name of the executor's thread.
+	 */
+	public TaskExecutor(String name) {
+		thread = new KThread(new Runnable() {
+			public void run() {
+				runSteps();
+			}
+		}).setName(name);
+	}
+
+	/**
+	 * Schedule a step to run on the executor's thread. May be called from any
+	 * kernel thread or from an interrupt handler, with interrupts enabled or
+	 * disabled.
+	 *
+	 * @param	step	the step to run.
+	 */
+	public void execute(Runnable step) {
+		Lib.assertTrue(step != null);
+
+		boolean intStatus = Interrupts.disable();
+
+		steps.add(step);
+
+		if (!started) {
+			started = true;
+			thread.fork();
+		}
+		else if (idle) {
+			idle = false;
+			thread.ready();
+		}
+
+		Interrupts.restore(intStatus);
+	}
+
+	/**
+	 * Return the thread that runs this executor's steps. A lock acquired by a
+	 * task is held by this thread.
+	 *
+	 * @return	the executor's thread.
+	 */
+	public KThread getThread() {
+		return thread;
+	}
+
+	/**
+	 * Test if the current thread is this executor's thread, that is, if the
+	 * caller is a step of one of its tasks.
+	 *
+	 * @return	<tt>true</tt> if called from a step.
+	 */
+	public boolean isExecutorThread() {
+		return KThread.currentThread() == thread;
+	}
+
+	/** Return the number of steps run so far. */
+	public long getStepCount() {
+		return stepCount;
+	}
+
+	/** Body of the executor's thread: run steps, sleeping when there are none. */
+	private void runSteps() {
+		while (true) {
+			boolean intStatus = Interrupts.disable();
+
+			while (steps.isEmpty()) {
+				idle = true;
+				KThread.sleep();
+			}
+			Runnable step = steps.poll();
+
+			Interrupts.restore(intStatus);
+
+			step.run();
+			stepCount++;
+		}
+	}
+
+	/**
+	 * Run <tt>tasks.count</tt> tasks (10000 by default) that each take a
+	 * shared lock, then one of four permits of a semaphore, while a kernel
+	 * thread contends for the same lock, and report the steps run and the
+	 * time taken.
+	 */
+	public static void selfTest() {
+		final int count = Config.getInteger("tasks.count", 10000);
+		final Lock lock = new Lock();
+		final Semaphore permits = new Semaphore(4);
+		final Semaphore done = new Semaphore(0);
+		final int[] counters = new int[2];
+
+		KThread contender = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 100; i++) {
+					lock.acquire();
+					counters[0]++;
+					lock.release();
+					KThread.yield();
+				}
+				done.V();
+			}
+		}).setName("lock contender");
+		contender.fork();
+
+		long startTicks = Machine.timer().getTime();
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < count; i++) {
+			final Runnable finish = new Runnable() {
+				public void run() {
+					permits.V();
+					if (++counters[1] == count)
+						done.V();
+				}
+			};
+			final Runnable locked = new Runnable() {
+				public void run() {
+					counters[0]++;
+					lock.release();
+					permits.P(finish);
+				}
+			};
+			lock.acquire(locked);
+		}
+
+		done.P();
+		done.P();
+
+		Lib.assertTrue(counters[0] == count + 100);
+		System.out.println("Tasks," + count + "," + ThreadedKernel.tasks.getStepCount()
+				+ "," + (Machine.timer().getTime() - startTicks)
+				+ "," + (System.currentTimeMillis() - start));
+	}
+
+	private KThread thread;
+	private boolean started = false;
+	private boolean idle = false;
+	private long stepCount = 0;
+
+	/** Steps ready to run, in submission order. */
+	private ArrayDeque<Runnable> steps = new ArrayDeque<Runnable>();
+}
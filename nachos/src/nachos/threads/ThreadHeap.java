@@ -0,0 +1,157 @@
+package nachos.threads;
+
+import java.util.Comparator;
+
+import nachos.machine.Lib;
+
+/**
+ * An intrusive indexed binary min-heap of thread states. Each
+ * <tt>ThreadState</tt> records its own position in <tt>heapIndex</tt>, so a
+ * queued thread whose key changes can be moved to its new position, or
+ * removed, in O(log n) without rebuilding the heap.
+ *
+ * <p>
+ * A thread state may be in at most one heap at a time. All methods must be
+ * invoked with interrupts disabled.
+ */
+class ThreadHeap {
+	/**
+	 * Allocate a new heap.
+	 *
+	 * @param	order		orders the states; the least is at the top.
+	 * @param	capacity	initial capacity. The heap grows as needed.
+	 */
+	ThreadHeap(Comparator<PriorityScheduler.ThreadState> order, int capacity) {
+		this.order = order;
+		this.heap = new PriorityScheduler.ThreadState[Math.max(capacity, 1)];
+	}
+
+	/** Return the number of states in the heap. */
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Return the state at position <i>i</i>, in no particular order. */
+	PriorityScheduler.ThreadState get(int i) {
+		Lib.assertTrue(i >= 0 && i < size);
+		return heap[i];
+	}
+
+	/** Return the least state without removing it, or <tt>null</tt>. */
+	PriorityScheduler.ThreadState peek() {
+		return size == 0 ? null : heap[0];
+	}
+
+	/** Add a state that is not in any heap. */
+	void add(PriorityScheduler.ThreadState state) {
+		Lib.assertTrue(state.heapIndex < 0);
+
+		if (size == heap.length) {
+			PriorityScheduler.ThreadState[] grown =
+					new PriorityScheduler.ThreadState[heap.length * 2];
+			System.arraycopy(heap, 0, grown, 0, size);
+			heap = grown;
+		}
+
+		heap[size] = state;
+		state.heapIndex = size;
+		size++;
+		siftUp(size - 1);
+	}
+
+	/** Remove and return the least state, or <tt>null</tt> if empty. */
+	PriorityScheduler.ThreadState poll() {
+		if (size == 0)
+			return null;
+
+		PriorityScheduler.ThreadState least = heap[0];
+		removeAt(0);
+		return least;
+	}
+
+	/** Remove the specified state, which must be in this heap. */
+	void remove(PriorityScheduler.ThreadState state) {
+		Lib.assertTrue(contains(state));
+
+		removeAt(state.heapIndex);
+	}
+
+	/** Test whether the specified state is in this heap. */
+	boolean contains(PriorityScheduler.ThreadState state) {
+		int i = state.heapIndex;
+		return i >= 0 && i < size && heap[i] == state;
+	}
+
+	/** Restore heap order after the key of a state in this heap changed. */
+	void update(PriorityScheduler.ThreadState state) {
+		Lib.assertTrue(contains(state));
+
+		int i = state.heapIndex;
+		siftUp(i);
+		if (heap[i] == state)
+			siftDown(i);
+	}
+
+	/** Restore heap order after the keys of many states changed, in O(n). */
+	void heapify() {
+		for (int i = size/2 - 1; i >= 0; i--)
+			siftDown(i);
+	}
+
+	private void removeAt(int i) {
+		PriorityScheduler.ThreadState removed = heap[i];
+		size--;
+
+		if (i != size) {
+			heap[i] = heap[size];
+			heap[i].heapIndex = i;
+			heap[size] = null;
+			update(heap[i]);
+		}
+		else {
+			heap[size] = null;
+		}
+
+		removed.heapIndex = -1;
+	}
+
+	private void siftUp(int i) {
+		PriorityScheduler.ThreadState state = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (order.compare(state, heap[parent]) >= 0)
+				break;
+			heap[i] = heap[parent];
+			heap[i].heapIndex = i;
+			i = parent;
+		}
+		heap[i] = state;
+		state.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+		PriorityScheduler.ThreadState state = heap[i];
+		while (true) {
+			int child = 2*i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && order.compare(heap[child + 1], heap[child]) < 0)
+				child++;
+			if (order.compare(heap[child], state) >= 0)
+				break;
+			heap[i] = heap[child];
+			heap[i].heapIndex = i;
+			i = child;
+		}
+		heap[i] = state;
+		state.heapIndex = i;
+	}
+
+	private Comparator<PriorityScheduler.ThreadState> order;
+	private PriorityScheduler.ThreadState[] heap;
+	private int size = 0;
+}
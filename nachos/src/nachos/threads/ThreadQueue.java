@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.Lib;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -92,6 +94,19 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Remove a thread that is waiting for access, without giving it access,
+     * for example when a timed wait expires. The thread is not woken. By
+     * default removal is not supported.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting in this queue.
+     */
+    public boolean remove(KThread thread) {
+	Lib.assertNotReached("Thread queue does not support removal.");
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
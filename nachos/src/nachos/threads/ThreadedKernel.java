@@ -15,6 +15,9 @@ public class ThreadedKernel extends Kernel {
 
 	/** I/0 file writer to handle logging specification in Part D. */
 	private PrintWriter logWriter;
+	
+	/** Binary scheduler event log, or <tt>null</tt> to log events as text. */
+	protected SchedulerEventLog eventLog = null;
 
 	/**
 	 * Allocate a new multi-threaded kernel.
@@ -28,22 +31,10 @@ public class ThreadedKernel extends Kernel {
 	 * alarm, and enables interrupts. Creates a file system if necessary.   
 	 */
 	public void initialize(String[] args) {
-		// Set scheduler to one of the three assignment types as specified in the config file.
+		// Set scheduler to one of the assignment types as specified in the config file.
 		String schedulerName = Config.getString("ThreadedKernel.scheduler");
-		if (schedulerName.equals("nachos.threads.StaticPriorityScheduler")) {
-			scheduler = (nachos.threads.StaticPriorityScheduler) Lib.constructObject(schedulerName);
-		}
-		else if (schedulerName.equals("nachos.threads.DynamicPriorityScheduler")) {
-			scheduler = new DynamicPriorityScheduler();
-			int ageTime = Config.getInteger("scheduler.agingTime");
-			scheduler.setAgingTime(ageTime);
-		}
-		else if (schedulerName.equals("nachos.threads.MultiLevelScheduler")) {
-			scheduler = new MultiLevelScheduler();
-			int ageTime = Config.getInteger("scheduler.agingTime");
-			scheduler.setAgingTime(ageTime);
-		}
-		else {
+		scheduler = createScheduler(schedulerName);
+		if (scheduler == null) {
 			System.err.println("No priority scheduler specified. Will exit.");
 			Machine.terminate();
 		}
@@ -63,13 +54,6 @@ public class ThreadedKernel extends Kernel {
 
 		ThreadedKernel.numThreads = Config.getInteger("Kernel.numThreads");
 		
-		
-		int ageTime = Config.getInteger("scheduler.agingTime");
-		scheduler.setAgingTime(ageTime);
-		
-		int maxPriority = Config.getInteger("scheduler.maxPriorityValue");
-		scheduler.setSchedMaxPriority(maxPriority);
-		
 		/* Grab the initialization time */
 		inittime = System.currentTimeMillis();
 
@@ -91,16 +75,105 @@ public class ThreadedKernel extends Kernel {
 			}
 		}
 
+		/* Optionally log scheduler events in binary, drained in batches */
+		String eventLogName = Config.getString("statistics.eventLog");
+		if (eventLogName != null) {
+			try {
+				eventLog = new SchedulerEventLog(eventLogName,
+						Config.getInteger("statistics.eventLogCapacity", 4096));
+			}
+			catch (IOException err) {
+				System.err.println("Error creating event log:");
+				System.err.println(err);
+			}
+		}
+
 		// TODO: remove commented test code
 		//	logWriter.write("THIS IS A TEST");
 		//	logWriter.flush();
 
+		// optionally profile how long kernel code keeps interrupts disabled
+		Interrupts.setProfiling(Config.getBoolean("ThreadedKernel.profileInterrupts", false));
+
 		// start threading
 		new KThread(null);
 
 		alarm  = new Alarm();
 
-		Machine.interrupt().enable();
+		tasks = new TaskExecutor("task executor");
+
+		bottomHalves = new BottomHalves("bottom halves",
+				Config.getInteger("ThreadedKernel.bottomHalfPriority", 1),
+				Config.getInteger("ThreadedKernel.bottomHalfBatch", 16));
+
+		workQueue = new WorkQueue("worker", Config.getInteger("ThreadedKernel.workers", 4),
+				Config.getInteger("ThreadedKernel.workQueueCapacity", 256),
+				Config.getInteger("ThreadedKernel.workerBatch", 8));
+
+		Interrupts.enable();
+	}
+
+	/**
+	 * Create a scheduler of the specified class and configure it from the
+	 * config file. The kernel reference is left for the caller to assign.
+	 *
+	 * @param	schedulerName	the fully qualified scheduler class name.
+	 * @return	the new scheduler, or <tt>null</tt> if the name is not a
+	 *		known priority scheduler.
+	 */
+	static PriorityScheduler createScheduler(String schedulerName) {
+		PriorityScheduler scheduler;
+		if (schedulerName == null) {
+			return null;
+		}
+		else if (schedulerName.equals("nachos.threads.RoundRobinPriorityScheduler")) {
+			scheduler = new RoundRobinPriorityScheduler();
+		}
+		else if (schedulerName.equals("nachos.threads.StaticPriorityScheduler")) {
+			scheduler = (nachos.threads.StaticPriorityScheduler) Lib.constructObject(schedulerName);
+		}
+		else if (schedulerName.equals("nachos.threads.DynamicPriorityScheduler")) {
+			scheduler = new DynamicPriorityScheduler();
+		}
+		else if (schedulerName.equals("nachos.threads.DecayUsageScheduler")) {
+			DecayUsageScheduler decay = new DecayUsageScheduler();
+			decay.setDecayInterval(Config.getInteger("scheduler.decayInterval", 10000));
+			scheduler = decay;
+		}
+		else if (schedulerName.equals("nachos.threads.MultiLevelScheduler")) {
+			scheduler = new MultiLevelScheduler();
+		}
+		else if (schedulerName.equals("nachos.threads.StrideScheduler")) {
+			scheduler = new StrideScheduler();
+		}
+		else if (schedulerName.equals("nachos.threads.FairShareScheduler")) {
+			scheduler = new FairShareScheduler();
+		}
+		else if (schedulerName.equals("nachos.threads.CompletelyFairScheduler")) {
+			CompletelyFairScheduler cfs = new CompletelyFairScheduler();
+			cfs.setLatency(Config.getInteger("scheduler.targetLatency", 20),
+					Config.getInteger("scheduler.minGranularity", 4));
+			scheduler = cfs;
+		}
+		else {
+			return null;
+		}
+
+		int ageTime = Config.getInteger("scheduler.agingTime");
+		scheduler.setAgingTime(ageTime);
+		
+		int maxPriority = Config.getInteger("scheduler.maxPriorityValue");
+		scheduler.setSchedMaxPriority(maxPriority);
+		
+		scheduler.setQuanta(Config.getString("scheduler.quanta"));
+		if (scheduler instanceof MultiLevelScheduler)
+			((MultiLevelScheduler) scheduler).setLevelQuanta(Config.getString("scheduler.levelQuanta"));
+		
+		scheduler.setRealTimeBound(Config.getDouble("scheduler.realTimeUtilization", 0.9));
+		
+		scheduler.setWallClockLatency(Config.getBoolean("statistics.wallClockLatency", false));
+
+		return scheduler;
 	}
 
 	/**
@@ -138,6 +211,10 @@ public class ThreadedKernel extends Kernel {
 	 */
 	public void terminate() {
 		scheduler.logFinalStats();
+		bottomHalves.logStats(this);
+		Interrupts.logStats(this);
+		if (eventLog != null)
+			eventLog.close();
 		Machine.halt();
 	}
 
@@ -156,6 +233,12 @@ public class ThreadedKernel extends Kernel {
 	public static PriorityScheduler scheduler = null;
 	/** Globally accessible reference to the alarm. */
 	public static Alarm alarm = null;
+	/** Globally accessible executor for lightweight kernel tasks. */
+	public static TaskExecutor tasks = null;
+	/** Globally accessible queue of deferred interrupt processing. */
+	public static BottomHalves bottomHalves = null;
+	/** Globally accessible pool of kernel worker threads. */
+	public static WorkQueue workQueue = null;
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
@@ -0,0 +1,289 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.PriorityQueue;
+
+import nachos.machine.*;
+
+/**
+ * A bounded pool of kernel worker threads that run deferred work, so that a
+ * subsystem can hand off a job without forking a <tt>KThread</tt> for it.
+ * Jobs wait in a queue ordered by priority (lower is more urgent, as for
+ * threads) and then by submission, and each worker runs the jobs it takes at
+ * the priority of the most urgent one. A worker takes up to a batch of jobs
+ * per trip to the queue, and a batch of jobs can be submitted at once, so
+ * the queue lock is taken once per batch rather than once per job.
+ *
+ * <p>
+ * The queue holds at most <i>capacity</i> jobs; <tt>submit()</tt> blocks
+ * while it is full. Every submitted job returns a <tt>WorkItem</tt> that
+ * other threads can wait on. The workers are forked when the first job is
+ * submitted. The kernel's pool is <tt>ThreadedKernel.workQueue</tt>.
+ */
+public class WorkQueue {
+	/** Priority of a job submitted without one. */
+	public static final int defaultPriority = 11;
+
+	/**
+	 * Allocate a new work queue.
+	 *
+	 * @param	name		the name of the worker threads.
+	 * @param	workers		the number of worker threads.
+	 * @param	capacity	the most jobs that can wait in the queue.
+	 * @param	batchSize	the most jobs a worker takes at once.
+	 */
+	public WorkQueue(String name, int workers, int capacity, int batchSize) {
+		Lib.assertTrue(workers > 0 && capacity > 0 && batchSize > 0);
+
+		this.name = name;
+		this.workers = new KThread[workers];
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Submit a job at the default priority, waiting while the queue is full.
+	 *
+	 * @param	job	the job to run.
+	 * @return	a handle to wait for the job with.
+	 */
+	public WorkItem submit(Runnable job) {
+		return submit(job, defaultPriority);
+	}
+
+	/**
+	 * Submit a job, waiting while the queue is full.
+	 *
+	 * @param	job		the job to run.
+	 * @param	priority	the priority to run it at.
+	 * @return	a handle to wait for the job with.
+	 */
+	public WorkItem submit(Runnable job, int priority) {
+		Lib.assertTrue(job != null);
+		start();
+
+		WorkItem item = new WorkItem(job, priority);
+
+		lock.acquire();
+		while (queue.size() == capacity)
+			notFull.sleep();
+		item.seq = nextSeq++;
+		queue.add(item);
+		notEmpty.wake();
+		lock.release();
+
+		return item;
+	}
+
+	/**
+	 * Submit several jobs at the same priority, taking the queue lock once
+	 * for as many of them as fit, and waiting while the queue is full.
+	 *
+	 * @param	jobs		the jobs to run, in order.
+	 * @param	priority	the priority to run them at.
+	 * @return	a handle for each job, in the same order.
+	 */
+	public WorkItem[] submitAll(Collection<? extends Runnable> jobs, int priority) {
+		start();
+
+		WorkItem[] items = new WorkItem[jobs.size()];
+		int n = 0;
+		for (Runnable job : jobs) {
+			Lib.assertTrue(job != null);
+			items[n++] = new WorkItem(job, priority);
+		}
+
+		lock.acquire();
+		for (int i = 0; i < items.length; ) {
+			while (queue.size() == capacity)
+				notFull.sleep();
+
+			int added = 0;
+			for (; i < items.length && queue.size() < capacity; i++, added++) {
+				items[i].seq = nextSeq++;
+				queue.add(items[i]);
+			}
+			if (added > 1)
+				notEmpty.wakeAll();
+			else
+				notEmpty.wake();
+		}
+		lock.release();
+
+		return items;
+	}
+
+	/** Return the number of jobs waiting in the queue. */
+	public int getQueueLength() {
+		lock.acquire();
+		int length = queue.size();
+		lock.release();
+		return length;
+	}
+
+	/** Fork the workers, the first time a job is submitted. */
+	private void start() {
+		boolean intStatus = Interrupts.disable();
+
+		if (!started) {
+			started = true;
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new KThread(new Runnable() {
+					public void run() {
+						work();
+					}
+				}).setName(name + " " + i);
+				workers[i].fork();
+			}
+		}
+
+		Interrupts.restore(intStatus);
+	}
+
+	/** Body of a worker: take a batch of jobs, run them, mark them done. */
+	private void work() {
+		WorkItem[] batch = new WorkItem[batchSize];
+
+		while (true) {
+			lock.acquire();
+			while (queue.isEmpty())
+				notEmpty.sleep();
+
+			int n = 0;
+			while (n < batchSize && !queue.isEmpty())
+				batch[n++] = queue.poll();
+
+			if (n > 1)
+				notFull.wakeAll();
+			else
+				notFull.wake();
+			lock.release();
+
+			// the queue is ordered, so the first job is the most urgent
+			boolean intStatus = Interrupts.disable();
+			ThreadedKernel.scheduler.setPriority(batch[0].priority);
+			Interrupts.restore(intStatus);
+
+			for (int i = 0; i < n; i++)
+				batch[i].job.run();
+
+			lock.acquire();
+			for (int i = 0; i < n; i++) {
+				batch[i].finish();
+				batch[i] = null;
+			}
+			lock.release();
+		}
+	}
+
+	/**
+	 * A job submitted to a work queue, used to wait for its completion.
+	 */
+	public class WorkItem implements Comparable<WorkItem> {
+		WorkItem(Runnable job, int priority) {
+			this.job = job;
+			this.priority = priority;
+		}
+
+		/** Return the priority the job was submitted at. */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Test if the job has run.
+		 *
+		 * @return	<tt>true</tt> if the job has completed.
+		 */
+		public boolean isDone() {
+			lock.acquire();
+			boolean result = done;
+			lock.release();
+			return result;
+		}
+
+		/**
+		 * Wait until the job has run. Returns immediately if it already has.
+		 */
+		public void waitFor() {
+			lock.acquire();
+			while (!done) {
+				if (completed == null)
+					completed = new Condition2(lock);
+				completed.sleep();
+			}
+			lock.release();
+		}
+
+		/** Mark the job done and wake its waiters. Called with the lock held. */
+		void finish() {
+			done = true;
+			if (completed != null)
+				completed.wakeAll();
+		}
+
+		public int compareTo(WorkItem other) {
+			if (priority != other.priority)
+				return priority < other.priority ? -1 : 1;
+			return seq < other.seq ? -1 : (seq > other.seq ? 1 : 0);
+		}
+
+		final Runnable job;
+		final int priority;
+		long seq;
+		private boolean done = false;
+
+		/** Waiters for the job, allocated by the first of them. */
+		private Condition2 completed = null;
+	}
+
+	/**
+	 * Submit batches of jobs at mixed priorities to the kernel's work queue,
+	 * wait for all of them, and report the time taken.
+	 */
+	public static void selfTest() {
+		final int count = Config.getInteger("workQueue.jobs", 1000);
+		final int[] ran = new int[1];
+
+		long startTicks = Machine.timer().getTime();
+		long start = System.currentTimeMillis();
+
+		WorkItem[] items = new WorkItem[count];
+		ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+		for (int i = 0; i < count; ) {
+			jobs.clear();
+			int priority = 1 + (i / 10) % 20;
+			for (int k = 0; k < 10 && i + k < count; k++) {
+				jobs.add(new Runnable() {
+					public void run() {
+						ran[0]++;
+					}
+				});
+			}
+			WorkItem[] batch = ThreadedKernel.workQueue.submitAll(jobs, priority);
+			System.arraycopy(batch, 0, items, i, batch.length);
+			i += batch.length;
+		}
+
+		for (int i = 0; i < count; i++)
+			items[i].waitFor();
+
+		Lib.assertTrue(ran[0] == count);
+		System.out.println("WorkQueue," + count + ","
+				+ (Machine.timer().getTime() - startTicks) + ","
+				+ (System.currentTimeMillis() - start));
+	}
+
+	private String name;
+	private KThread[] workers;
+	private int capacity;
+	private int batchSize;
+	private boolean started = false;
+
+	private Lock lock = new Lock();
+	private Condition2 notEmpty = new Condition2(lock);
+	private Condition2 notFull = new Condition2(lock);
+	private PriorityQueue<WorkItem> queue = new PriorityQueue<WorkItem>();
+	private long nextSeq = 0;
+}
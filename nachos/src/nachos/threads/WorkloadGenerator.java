@@ -0,0 +1,302 @@
+package nachos.threads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nachos.machine.*;
+
+/**
+ * Creates a stream of kernel threads from a description in the config file,
+ * to load the scheduler with hundreds or thousands of threads over a run.
+ * Threads arrive according to a Poisson process, or at the times given in a
+ * trace file in the format read by <tt>SchedulerSimulator.readTrace()</tt>.
+ * Each thread alternates CPU bursts with blocking periods and then finishes.
+ *
+ * <p>
+ * The machine runs at most <tt>TCB.maxThreads</tt> threads at once, so at
+ * most <tt>workload.maxLive</tt> workload threads are alive at a time; an
+ * arrival that would exceed this waits for a thread to finish, and so is
+ * forked late.
+ *
+ * <p>
+ * A CPU burst toggles interrupts, so that simulated time advances by
+ * <tt>Stats.KernelTick</tt> per step and the timer can preempt the thread.
+ * Each blocking period is spent in one of three ways, chosen by weight:
+ *
+ * <ul>
+ * <li><tt>alarm</tt>: sleep in <tt>Alarm.waitUntil()</tt>.
+ * <li><tt>semaphore</tt>: take a permit from a shared pool, modelling a set of
+ * devices, and sleep while holding it; threads queue on the pool when all
+ * permits are taken.
+ * <li><tt>lock</tt>: run the period as a critical section under one of a few
+ * shared locks, so that threads contend for them.
+ * </ul>
+ *
+ * <p>
+ * Config keys, with defaults:
+ *
+ * <p><blockquote><pre>
+ * workload.threads = 100          # ignored with a trace
+ * workload.trace = file           # trace-driven arrivals instead of Poisson
+ * workload.seed = 0
+ * workload.meanArrival = 1000     # ticks between arrivals
+ * workload.burst = exponential    # or uniform, constant
+ * workload.meanBurst = 500        # ticks
+ * workload.meanBlock = 1000       # ticks
+ * workload.bursts = 4             # most CPU bursts per thread
+ * workload.priorities = 11:1      # priority:weight,...
+ * workload.blocking = alarm:1     # alarm/semaphore/lock:weight,...
+ * workload.permits = 2
+ * workload.locks = 2
+ * workload.maxLive = 200          # at most TCB.maxThreads - 50
+ * </pre></blockquote>
+ */
+public class WorkloadGenerator {
+	/** Ways a thread can block. */
+	private static final String[] blockKinds = { "alarm", "semaphore", "lock" };
+	private static final int blockAlarm = 0;
+	private static final int blockSemaphore = 1;
+	private static final int blockLock = 2;
+
+	/**
+	 * Allocate a generator and build its threads from the config file.
+	 */
+	public WorkloadGenerator() {
+		random = new Random(Config.getInteger("workload.seed", 0));
+		burstDistribution = Config.getString("workload.burst", "exponential");
+		meanBurst = Config.getInteger("workload.meanBurst", 500);
+		meanBlock = Config.getInteger("workload.meanBlock", 1000);
+		maxBursts = Config.getInteger("workload.bursts", 4);
+
+		parseMix(Config.getString("workload.priorities", "11:1"), null);
+		parseMix(Config.getString("workload.blocking", "alarm:1"), blockKinds);
+
+		permits = new Semaphore(Config.getInteger("workload.permits", 2));
+		locks = new Lock[Math.max(Config.getInteger("workload.locks", 2), 1)];
+
+		// leave room for the kernel's own threads
+		int maxLive = Config.getInteger("workload.maxLive", TCB.maxThreads - reservedThreads);
+		live = new Semaphore(Math.max(1, Math.min(maxLive, TCB.maxThreads - reservedThreads)));
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new Lock();
+
+		String traceName = Config.getString("workload.trace");
+		if (traceName != null) {
+			try {
+				trace = SchedulerSimulator.readTrace(traceName);
+			}
+			catch (IOException err) {
+				System.err.println("Error reading workload trace:");
+				System.err.println(err);
+				trace = new ArrayList<SchedulerSimulator.TraceThread>();
+			}
+		}
+		else {
+			trace = generate(Config.getInteger("workload.threads", 100),
+					Config.getInteger("workload.meanArrival", 1000));
+		}
+	}
+
+	/** Build a Poisson arrival stream with the configured mixes. */
+	private List<SchedulerSimulator.TraceThread> generate(int threads, long meanArrival) {
+		List<SchedulerSimulator.TraceThread> generated =
+				new ArrayList<SchedulerSimulator.TraceThread>(threads);
+
+		long arrival = 0;
+		for (int i = 0; i < threads; i++) {
+			arrival += exponential(meanArrival);
+
+			int nbursts = 1 + random.nextInt(Math.max(maxBursts, 1));
+			long[] bursts = new long[2*nbursts - 1];
+			for (int b = 0; b < bursts.length; b++)
+				bursts[b] = (b % 2 == 0) ? burst() : exponential(meanBlock);
+
+			generated.add(new SchedulerSimulator.TraceThread(arrival,
+					pick(priorities, priorityWeights), bursts));
+		}
+		return generated;
+	}
+
+	/**
+	 * Fork the threads at their arrival times and wait for all of them to
+	 * finish. Must not be called with interrupts disabled.
+	 */
+	public void run() {
+		final KThread spawner = new KThread(new Runnable() {
+			public void run() {
+				spawn();
+			}
+		}).setName("workload spawner");
+
+		boolean intStatus = Interrupts.disable();
+		ThreadedKernel.scheduler.setPriority(spawner, 1);
+		Interrupts.restore(intStatus);
+		spawner.fork();
+
+		for (int i = 0; i < trace.size(); i++)
+			finished.P();
+	}
+
+	/** Body of the spawner thread: sleep until each arrival and fork. */
+	private void spawn() {
+		long start = Machine.timer().getTime();
+
+		for (int i = 0; i < trace.size(); i++) {
+			final SchedulerSimulator.TraceThread t = trace.get(i);
+			ThreadedKernel.alarm.waitUntil(start + t.arrival - Machine.timer().getTime());
+
+			// choose every blocking kind and lock up front, so that the
+			// workload does not depend on the order threads run in
+			final int[] kinds = new int[t.bursts.length / 2];
+			final int[] lockChoices = new int[kinds.length];
+			for (int k = 0; k < kinds.length; k++) {
+				kinds[k] = pick(blockKindIndex, blockWeights);
+				lockChoices[k] = random.nextInt(locks.length);
+			}
+
+			KThread thread = new KThread(new Runnable() {
+				public void run() {
+					body(t, kinds, lockChoices);
+				}
+			}).setName("workload thread " + i);
+
+			// wait for room under the machine's thread limit
+			live.P();
+
+			boolean intStatus = Interrupts.disable();
+			ThreadedKernel.scheduler.setFixPriority(thread, t.priority);
+			Interrupts.restore(intStatus);
+			thread.fork();
+		}
+	}
+
+	/** Body of a workload thread. */
+	private void body(SchedulerSimulator.TraceThread t, int[] kinds, int[] lockChoices) {
+		for (int b = 0; b < t.bursts.length; b += 2) {
+			compute(t.bursts[b]);
+			if (b + 1 < t.bursts.length)
+				block(kinds[b / 2], locks[lockChoices[b / 2]], t.bursts[b + 1]);
+		}
+		live.V();
+		finished.V();
+	}
+
+	/** Use the CPU for about the specified number of ticks. */
+	private static void compute(long ticks) {
+		for (long left = ticks; left > 0; left -= Stats.KernelTick) {
+			boolean intStatus = Interrupts.disable();
+			Interrupts.restore(intStatus);
+		}
+	}
+
+	private void block(int kind, Lock lock, long ticks) {
+		switch (kind) {
+		case blockAlarm:
+			ThreadedKernel.alarm.waitUntil(ticks);
+			break;
+
+		case blockSemaphore:
+			permits.P();
+			ThreadedKernel.alarm.waitUntil(ticks);
+			permits.V();
+			break;
+
+		case blockLock:
+			lock.acquire();
+			compute(ticks);
+			lock.release();
+			break;
+		}
+	}
+
+	private long burst() {
+		if (burstDistribution.equals("constant"))
+			return meanBurst;
+		if (burstDistribution.equals("uniform"))
+			return 1 + (long) (random.nextDouble() * 2 * meanBurst);
+		return exponential(meanBurst);
+	}
+
+	private long exponential(long mean) {
+		return 1 + (long) (-mean * Math.log(1 - random.nextDouble()));
+	}
+
+	/** Pick an entry with probability proportional to its weight. */
+	private int pick(int[] values, int[] weights) {
+		int total = 0;
+		for (int w : weights)
+			total += w;
+
+		int r = random.nextInt(Math.max(total, 1));
+		for (int i = 0; i < values.length; i++) {
+			r -= weights[i];
+			if (r < 0)
+				return values[i];
+		}
+		return values[values.length - 1];
+	}
+
+	/**
+	 * Parse a <tt>value:weight,...</tt> mix. Values are priorities, or
+	 * indices into <i>names</i> if it is not <tt>null</tt>.
+	 */
+	private void parseMix(String mix, String[] names) {
+		String[] entries = mix.split(",");
+		int[] values = new int[entries.length];
+		int[] weights = new int[entries.length];
+
+		for (int i = 0; i < entries.length; i++) {
+			String[] pair = entries[i].trim().split(":");
+			weights[i] = (pair.length > 1) ? Integer.parseInt(pair[1].trim()) : 1;
+
+			if (names == null) {
+				values[i] = Integer.parseInt(pair[0].trim());
+				continue;
+			}
+			values[i] = -1;
+			for (int k = 0; k < names.length; k++)
+				if (names[k].equals(pair[0].trim()))
+					values[i] = k;
+			Lib.assertTrue(values[i] >= 0, "Unknown blocking kind " + pair[0]);
+		}
+
+		if (names == null) {
+			priorities = values;
+			priorityWeights = weights;
+		}
+		else {
+			blockKindIndex = values;
+			blockWeights = weights;
+		}
+	}
+
+	/**
+	 * Run the workload described in the config file.
+	 */
+	public static void selfTest() {
+		WorkloadGenerator generator = new WorkloadGenerator();
+		generator.run();
+	}
+
+	private Random random;
+	private String burstDistribution;
+	private long meanBurst;
+	private long meanBlock;
+	private int maxBursts;
+
+	private int[] priorities, priorityWeights;
+	private int[] blockKindIndex, blockWeights;
+
+	private Semaphore permits;
+	private Lock[] locks;
+	private Semaphore finished = new Semaphore(0);
+
+	/** Threads the machine can run that are kept for the kernel's own. */
+	private static final int reservedThreads = 50;
+	/** Permits for workload threads that may be alive at once. */
+	private Semaphore live;
+
+	private List<SchedulerSimulator.TraceThread> trace;
+}
@@ -23,7 +23,8 @@ public class SynchConsole {
 	Runnable sendHandler = new Runnable() {
 	    public void run() { sendInterrupt(); }
 	};
-	console.setInterruptHandlers(receiveHandler, sendHandler);
+	console.setInterruptHandlers(ThreadedKernel.bottomHalves.interruptHandler(receiveHandler),
+				     ThreadedKernel.bottomHalves.interruptHandler(sendHandler));
     }
 
     /**
@@ -38,7 +39,7 @@ public class SynchConsole {
      */
     public int readByte(boolean block) {
 	int value;
-	boolean intStatus = Machine.interrupt().disable();	
+	boolean intStatus = Interrupts.disable();	
 	readLock.acquire();
 
 	if (block || charAvailable) {
@@ -53,7 +54,7 @@ public class SynchConsole {
 	}
 
 	readLock.release();
-	Machine.interrupt().restore(intStatus);
+	Interrupts.restore(intStatus);
 	return value;
     }
 
@@ -66,9 +67,10 @@ public class SynchConsole {
 	return new File(true, false);
     }
 
+    /** Top half: note the byte, and wake the reader from a bottom half. */
     private void receiveInterrupt() {
 	charAvailable = true;
-	readWait.V();
+	ThreadedKernel.bottomHalves.schedule(readDone);
     }
 
     /**
@@ -92,8 +94,9 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /** Top half: wake the writer from a bottom half. */
     private void sendInterrupt() {
-	writeWait.V();
+	ThreadedKernel.bottomHalves.schedule(writeDone);
     }
 
     private boolean charAvailable = false;
@@ -104,6 +107,14 @@ public class SynchConsole {
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
 
+    /** Bottom halves of the receive and send interrupts. */
+    private Runnable readDone = new Runnable() {
+	public void run() { readWait.V(); }
+    };
+    private Runnable writeDone = new Runnable() {
+	public void run() { writeWait.V(); }
+    };
+
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
 	    super(null, "SynchConsole");